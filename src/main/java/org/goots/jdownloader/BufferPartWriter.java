@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2019 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.jdownloader;
+
+import org.goots.jdownloader.utils.ByteUtils;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Writes parts into off-heap memory. As a single {@link ByteBuffer} is limited to 2GB the content is
+ * spread over consecutive chunks of {@code chunkSize} bytes; only the last chunk may be smaller. A writer for content
+ * of unknown size grows its last chunk as it is written, so it must be written sequentially.
+ */
+class BufferPartWriter
+                implements PartWriter
+{
+    // 1GB chunks for content that will not fit in a single buffer.
+    static final int CHUNK_DEFAULT = 1 << 30;
+
+    // Initial capacity of content of unknown size, doubled as it is written.
+    private static final int GROWTH_INITIAL = 1024 * 1024;
+
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+
+    private final int chunkSize;
+
+    private final long limit;
+
+    private long length;
+
+    BufferPartWriter( long size )
+    {
+        this( size, size <= Integer.MAX_VALUE ? Integer.MAX_VALUE : CHUNK_DEFAULT );
+    }
+
+    BufferPartWriter( long size, int chunkSize )
+    {
+        this.chunkSize = chunkSize;
+        this.limit = -1;
+
+        for ( long offset = 0; offset < size; offset += chunkSize )
+        {
+            chunks.add( ByteBuffer.allocateDirect( (int) Math.min( chunkSize, size - offset ) ) );
+        }
+    }
+
+    private BufferPartWriter( int chunkSize, long limit )
+    {
+        this.chunkSize = chunkSize;
+        this.limit = limit;
+    }
+
+    /**
+     * Creates a writer for content of unknown size, which is streamed directly into chunks that grow as it is
+     * written.
+     *
+     * @param limit the maximum number of bytes that may be written.
+     * @param chunkSize the size of each chunk but the last.
+     * @return the writer.
+     */
+    static BufferPartWriter growable( long limit, int chunkSize )
+    {
+        return new BufferPartWriter( chunkSize, limit );
+    }
+
+    @Override
+    public void write( long position, ByteBuffer src ) throws IOException
+    {
+        if ( limit >= 0 )
+        {
+            ensureCapacity( position + src.remaining() );
+            length = Math.max( length, position + src.remaining() );
+        }
+        while ( src.hasRemaining() )
+        {
+            // Duplicate so that concurrent writers never share position or limit.
+            ByteBuffer dst = chunks.get( Math.toIntExact( position / chunkSize ) ).duplicate();
+            ( (Buffer) dst ).position( (int) ( position % chunkSize ) );
+
+            int length = Math.min( src.remaining(), dst.remaining() );
+            ByteBuffer slice = src.duplicate();
+            ( (Buffer) slice ).limit( slice.position() + length );
+
+            dst.put( slice );
+            ( (Buffer) src ).position( src.position() + length );
+            position += length;
+        }
+    }
+
+    @Override
+    public void read( long position, ByteBuffer dst )
+    {
+        while ( dst.hasRemaining() )
+        {
+            ByteBuffer src = chunks.get( Math.toIntExact( position / chunkSize ) ).duplicate();
+            ( (Buffer) src ).position( (int) ( position % chunkSize ) );
+
+            int length = Math.min( src.remaining(), dst.remaining() );
+            ( (Buffer) src ).limit( src.position() + length );
+
+            dst.put( src );
+            position += length;
+        }
+    }
+
+    /**
+     * @return read-only list of the chunks, each positioned at zero.
+     */
+    List<ByteBuffer> getBuffers()
+    {
+        List<ByteBuffer> result = new ArrayList<>( chunks.size() );
+        chunks.forEach( c -> result.add( c.duplicate() ) );
+
+        if ( limit >= 0 && !result.isEmpty() )
+        {
+            // Trim the spare capacity of a grown writer.
+            ByteBuffer last = result.get( result.size() - 1 );
+            ( (Buffer) last ).limit( (int) ( length - (long) chunkSize * ( result.size() - 1 ) ) );
+            result.set( result.size() - 1, last.slice() );
+        }
+        return Collections.unmodifiableList( result );
+    }
+
+    /**
+     * Grows the last chunk, by doubling its capacity up to the chunk size, or adds chunks until the capacity is at
+     * least the required size.
+     */
+    private void ensureCapacity( long required ) throws IOException
+    {
+        if ( required > limit )
+        {
+            throw new IOException( "Content exceeds the limit of " + ByteUtils.humanReadableByteCount( limit ) + " ( "
+                                                   + limit + " bytes )" );
+        }
+
+        while ( capacity() < required )
+        {
+            int last = chunks.size() - 1;
+
+            if ( last < 0 || chunks.get( last ).capacity() == chunkSize )
+            {
+                chunks.add( ByteBuffer.allocateDirect( (int) Math.min( Math.min( GROWTH_INITIAL, chunkSize ),
+                                                                       limit - capacity() ) ) );
+            }
+            else
+            {
+                ByteBuffer tail = chunks.get( last );
+                long offset = (long) chunkSize * last;
+                ByteBuffer grown = ByteBuffer.allocateDirect(
+                                (int) Math.min( Math.min( tail.capacity() * 2L, chunkSize ), limit - offset ) );
+                ByteBuffer written = tail.duplicate();
+
+                ( (Buffer) written ).limit( (int) Math.max( 0, Math.min( tail.capacity(), length - offset ) ) );
+                grown.put( written );
+                ( (Buffer) grown ).clear();
+                chunks.set( last, grown );
+            }
+        }
+    }
+
+    private long capacity()
+    {
+        return chunks.isEmpty() ? 0 : (long) chunkSize * ( chunks.size() - 1 ) + chunks.get( chunks.size() - 1 ).capacity();
+    }
+}
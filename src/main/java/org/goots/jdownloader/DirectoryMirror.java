@@ -0,0 +1,364 @@
+/*
+ * Copyright (C) 2019 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.jdownloader;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.goots.jdownloader.utils.ByteUtils;
+import org.goots.jdownloader.utils.InternalException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Mirrors a directory tree from HTTP index listings (such as those of Apache httpd, nginx or Jetty with dirAllowed)
+ * into a local directory. Index pages are parsed as they are streamed and each file found is scheduled straight
+ * away, so downloads start while the rest of the tree is still being discovered. Every request shares a single
+ * connection pool: files above the minimum split are downloaded in parts, smaller files are fetched whole on
+ * pooled keep-alive connections. Files whose size and Last-Modified match the local copy are skipped.
+ */
+public class DirectoryMirror
+{
+    private static final Pattern HREF = Pattern.compile( "<a\\s[^>]*?href\\s*=\\s*[\"']([^\"'#?]+)[\"']", Pattern.CASE_INSENSITIVE );
+
+    private final Logger logger = LoggerFactory.getLogger( DirectoryMirror.class );
+
+    private final URI base;
+
+    private File target = new File( "." );
+
+    private int connections = Math.max( Runtime.getRuntime().availableProcessors(), 4 ) * 2;
+
+    private int partCount = Math.max( Runtime.getRuntime().availableProcessors(), 4 );
+
+    private int minimumSplit = JDownloader.SPLIT_DEFAULT;
+
+    private final Set<URI> visited = ConcurrentHashMap.newKeySet();
+
+    private final BlockingQueue<Map.Entry<URI, Future<Void>>> pending = new LinkedBlockingQueue<>();
+
+    private final AtomicInteger downloaded = new AtomicInteger();
+
+    private final AtomicInteger skipped = new AtomicInteger();
+
+    private final AtomicLong byteCount = new AtomicLong();
+
+    private ExecutorService service;
+
+    private CloseableHttpClient pooledClient;
+
+    private PoolingHttpClientConnectionManager cm;
+
+    public DirectoryMirror( String remote ) throws InternalException, URISyntaxException
+    {
+        if ( remote == null || remote.isEmpty() )
+        {
+            throw new InternalException( "No remote specified" );
+        }
+        this.base = new URI( remote.endsWith( "/" ) ? remote : remote + '/' );
+    }
+
+    /**
+     * Define the local directory to mirror into. Optional, defaults to the working directory.
+     * @param target the local directory.
+     * @return this object.
+     */
+    public DirectoryMirror target( File target )
+    {
+        this.target = target;
+        return this;
+    }
+
+    /**
+     * Define the number of connections shared by all index pages, files and parts. Defaults to twice the number
+     * of processors or 8 whichever is greater.
+     * @param connections maximum number of connections.
+     * @return this object
+     */
+    public DirectoryMirror connections( int connections )
+    {
+        this.connections = connections;
+        return this;
+    }
+
+    /**
+     * Defines the number of parts files above the minimum split are divided into. Defaults to number of processors.
+     * @param partCount number of parts.
+     * @return this object
+     */
+    public DirectoryMirror partCount( int partCount )
+    {
+        this.partCount = partCount;
+        return this;
+    }
+
+    /**
+     * Define the minimum size of a file before it is downloaded in parts. Default is 10MB.
+     * Set to &lt;= 0 to fetch every file whole.
+     * @param minimumSplit the split in bytes
+     * @return this object
+     */
+    public DirectoryMirror minimumSplit( int minimumSplit )
+    {
+        this.minimumSplit = minimumSplit;
+        return this;
+    }
+
+    /**
+     * Mirrors the remote directory and all of its subdirectories.
+     *
+     * @throws InternalException if any index page or file could not be retrieved
+     * @throws IOException if unable to write to the local directory
+     */
+    public void mirror() throws InternalException, IOException, InterruptedException
+    {
+        logger.info( "Mirroring {} to {} with {} connections", base, target, connections );
+
+        cm = new PoolingHttpClientConnectionManager();
+        cm.setDefaultMaxPerRoute( connections );
+        cm.setMaxTotal( connections );
+        service = Executors.newFixedThreadPool( connections );
+
+        List<URI> failures = new ArrayList<>();
+
+        try ( CloseableHttpClient client = HttpClients.custom().setConnectionManager( cm ).build() )
+        {
+            pooledClient = client;
+            schedule( base );
+
+            // Each task queues any work it discovers before it completes, so once the queue is drained every
+            // discovered file has been processed.
+            Map.Entry<URI, Future<Void>> entry;
+            while ( ( entry = pending.poll() ) != null )
+            {
+                try
+                {
+                    entry.getValue().get();
+                }
+                catch ( ExecutionException e )
+                {
+                    logger.error( "Unable to mirror {}: {}", entry.getKey(), e.getCause().getMessage() );
+                    failures.add( entry.getKey() );
+                }
+            }
+        }
+        finally
+        {
+            service.shutdownNow();
+        }
+
+        logger.info( "Completed mirroring {} files ( {} ) and skipped {} unchanged files", downloaded.get(),
+                     ByteUtils.humanReadableByteCount( byteCount.get() ), skipped.get() );
+
+        if ( !failures.isEmpty() )
+        {
+            throw new InternalException( "Unable to mirror " + failures );
+        }
+    }
+
+    /**
+     * Extracts the links of an index page that lie beneath it, ignoring sort links, anchors and parent links.
+     */
+    static List<URI> links( URI page, String line )
+    {
+        List<URI> result = new ArrayList<>();
+        Matcher matcher = HREF.matcher( line );
+
+        while ( matcher.find() )
+        {
+            try
+            {
+                URI link = page.resolve( new URI( matcher.group( 1 ).replace( "&amp;", "&" ) ) ).normalize();
+
+                if ( page.getAuthority().equals( link.getAuthority() ) && link.getPath() != null
+                                && link.getPath().startsWith( page.getPath() )
+                                && link.getPath().length() > page.getPath().length() )
+                {
+                    result.add( link );
+                }
+            }
+            catch ( URISyntaxException e )
+            {
+                // Not a link that can be followed.
+            }
+        }
+        return result;
+    }
+
+    private void schedule( URI uri )
+    {
+        if ( visited.add( uri ) )
+        {
+            boolean directory = uri.getPath().endsWith( "/" );
+            pending.add( new AbstractMap.SimpleImmutableEntry<>( uri, service.submit(
+                            () -> directory ? crawl( uri ) : fetch( uri ) ) ) );
+        }
+    }
+
+    private Void crawl( URI page ) throws IOException, InternalException
+    {
+        logger.debug( "Reading index {}", page );
+
+        try ( CloseableHttpResponse httpResponse = pooledClient.execute( new HttpGet( page ) ) )
+        {
+            if ( httpResponse.getStatusLine().getStatusCode() != HttpStatus.SC_OK )
+            {
+                throw new InternalException( "Invalid URL (" + page + ") ; received response: " +
+                                                             httpResponse.getStatusLine().toString() );
+            }
+
+            try ( BufferedReader reader = new BufferedReader(
+                            new InputStreamReader( httpResponse.getEntity().getContent(), StandardCharsets.UTF_8 ) ) )
+            {
+                String line;
+                while ( ( line = reader.readLine() ) != null )
+                {
+                    links( page, line ).forEach( this::schedule );
+                }
+            }
+        }
+        return null;
+    }
+
+    private Void fetch( URI remote ) throws IOException, InternalException, URISyntaxException, InterruptedException
+    {
+        String path = base.relativize( remote ).getPath();
+        Path root = target.toPath().toAbsolutePath().normalize();
+        Path resolved = root.resolve( path ).normalize();
+
+        // Names may contain "..", but must not climb out of the target once normalised.
+        if ( path.startsWith( "/" ) || !resolved.startsWith( root ) || resolved.equals( root ) )
+        {
+            throw new InternalException( "Remote " + remote + " lies outside " + base );
+        }
+        File local = resolved.toFile();
+
+        // An existing copy is only fetched again if the remote has been modified since, so an unchanged file costs
+        // a bodiless 304 on a connection that stays open rather than a HEAD request or an abandoned body.
+        HttpGet get = new HttpGet( remote );
+        if ( local.exists() )
+        {
+            get.setHeader( HttpHeaders.IF_MODIFIED_SINCE, DateUtils.formatDate( new Date( local.lastModified() ) ) );
+        }
+
+        try ( CloseableHttpResponse httpResponse = pooledClient.execute( get ) )
+        {
+            if ( httpResponse.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED )
+            {
+                logger.debug( "Skipping unchanged {}", path );
+                skipped.incrementAndGet();
+                return null;
+            }
+            if ( httpResponse.getStatusLine().getStatusCode() != HttpStatus.SC_OK )
+            {
+                throw new InternalException( "Invalid URL (" + remote + ") ; received response: " +
+                                                             httpResponse.getStatusLine().toString() );
+            }
+
+            long size = httpResponse.getEntity().getContentLength();
+            Header modified = httpResponse.getFirstHeader( HttpHeaders.LAST_MODIFIED );
+            Header acceptRange = httpResponse.getFirstHeader( HttpHeaders.ACCEPT_RANGES );
+            Date lastModified = modified == null ? null : DateUtils.parseDate( modified.getValue() );
+            boolean ranges = acceptRange != null && acceptRange.getValue().equals( "bytes" );
+
+            // Servers that ignore the condition still report whether the file is unchanged.
+            if ( local.exists() && size == local.length() && lastModified != null
+                            && lastModified.getTime() / 1000 == local.lastModified() / 1000 )
+            {
+                logger.debug( "Skipping unchanged {}", path );
+                skipped.incrementAndGet();
+                return null;
+            }
+
+            Files.createDirectories( local.getParentFile().toPath() );
+            File partial = new File( local.getPath() + ".part" );
+
+            if ( minimumSplit > 0 && ranges && size > minimumSplit )
+            {
+                // Abandon the single stream in favour of a parted download.
+                httpResponse.close();
+                new JDownloader( remote.toURL() ).connectionManager( cm ).partCount( partCount ).maxThread( partCount )
+                                                 .minimumSplit( minimumSplit ).target( partial.getPath() ).execute();
+            }
+            else
+            {
+                try ( OutputStream out = Files.newOutputStream( partial.toPath() ) )
+                {
+                    IOUtils.copyLarge( httpResponse.getEntity().getContent(), out );
+                }
+            }
+
+            complete( remote, path, local, partial, size, lastModified );
+        }
+        return null;
+    }
+
+    private void complete( URI remote, String path, File local, File partial, long size, Date lastModified )
+                    throws IOException
+    {
+        if ( size >= 0 && partial.length() != size )
+        {
+            Files.deleteIfExists( partial.toPath() );
+            throw new IOException( "Expected " + size + " bytes for " + remote + " but received " + partial.length() );
+        }
+
+        Files.move( partial.toPath(), local.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+        if ( lastModified != null )
+        {
+            local.setLastModified( lastModified.getTime() );
+        }
+        downloaded.incrementAndGet();
+        byteCount.addAndGet( local.length() );
+
+        logger.debug( "Fetched {} ( {} )", path, ByteUtils.humanReadableByteCount( local.length() ) );
+    }
+}
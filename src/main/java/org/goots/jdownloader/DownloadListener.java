@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2019 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.jdownloader;
+
+/**
+ * Receives progress while a download is in flight so that downstream processing may overlap it. Events are
+ * delivered on the download threads but are serialized, and the prefix length only ever increases; implementations
+ * should return quickly or hand off to their own executor.
+ */
+public interface DownloadListener
+{
+    /**
+     * Called when a region of the remote has been completely written to the target.
+     *
+     * @param from the offset of the first byte of the region.
+     * @param to the offset after the last byte of the region.
+     */
+    default void regionCompleted( long from, long to )
+    {
+    }
+
+    /**
+     * Called as the contiguous range of bytes [0, length) written to the target grows.
+     *
+     * @param length the number of bytes from the start of the target that are now complete.
+     */
+    default void prefixCompleted( long length )
+    {
+    }
+}
@@ -0,0 +1,713 @@
+/*
+ * Copyright (C) 2019 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.jdownloader;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.goots.jdownloader.utils.ByteUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Long running daemon that keeps a warm JVM and a persistent connection pool, accepting download jobs over a
+ * loopback HTTP API. This removes JVM startup, class loading and connection setup from each download, which
+ * otherwise dominates for many small files. Jobs for the same URL and target that are still queued or running
+ * are deduplicated.
+ * <pre>
+ * POST /jobs           {"url":...,"out":...[,"parts":N][,"split":N][,"wait":true]}   Submit a job
+ * GET  /jobs           List retained jobs
+ * GET  /jobs/{id}      Job status, optionally with wait=true to block until finished
+ * POST /shutdown       Stop the daemon
+ * </pre>
+ * As any local process or web page could otherwise write arbitrary files as the daemon user, every request must
+ * carry {@code Authorization: Bearer <token>} where the token is read from an owner only (0600) file, requests
+ * naming a non loopback Host or a foreign Origin are refused and jobs are only accepted as JSON for http(s) URLs.
+ * Relative output paths are resolved against the working directory of the daemon.
+ */
+public class DownloadServer
+                implements Closeable
+{
+    public enum Status
+    {
+        QUEUED, RUNNING, COMPLETED, FAILED
+    }
+
+    private static final int RETAINED_JOBS = 10000;
+
+    private static final int TOKEN_BYTES = 32;
+
+    private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString( "rw-------" );
+
+    private static final Set<String> LOOPBACK_HOSTS = new HashSet<>( Arrays.asList( "localhost", "127.0.0.1", "[::1]" ) );
+
+    private final Logger logger = LoggerFactory.getLogger( DownloadServer.class );
+
+    private final HttpServer server;
+
+    private final ExecutorService workers;
+
+    private final PoolingHttpClientConnectionManager cm = new PoolingHttpClientConnectionManager();
+
+    private final AtomicLong nextId = new AtomicLong();
+
+    private final Map<String, Job> active = new HashMap<>();
+
+    private final Map<String, Job> jobs = new LinkedHashMap<String, Job>()
+    {
+        @Override
+        protected boolean removeEldestEntry( Map.Entry<String, Job> eldest )
+        {
+            return size() > RETAINED_JOBS && eldest.getValue().isFinished();
+        }
+    };
+
+    private final CountDownLatch stopped = new CountDownLatch( 1 );
+
+    private final byte[] authorization;
+
+    /**
+     * Creates a daemon bound to the loopback interface.
+     *
+     * @param port the port to listen on, or 0 for an ephemeral port.
+     * @param workerCount the number of jobs to run concurrently.
+     * @param connections the maximum number of pooled connections shared by all jobs.
+     * @param tokenFile the file holding the bearer token; if absent it is created with a random token.
+     * @throws IOException if unable to bind, or the token file is unreadable or accessible by others.
+     */
+    public DownloadServer( int port, int workerCount, int connections, Path tokenFile ) throws IOException
+    {
+        authorization = ( "Bearer " + loadToken( tokenFile ) ).getBytes( StandardCharsets.UTF_8 );
+
+        cm.setMaxTotal( connections );
+        cm.setDefaultMaxPerRoute( connections );
+
+        workers = Executors.newFixedThreadPool( workerCount );
+        server = HttpServer.create( new InetSocketAddress( InetAddress.getLoopbackAddress(), port ), 0 );
+        server.setExecutor( Executors.newCachedThreadPool() );
+        server.createContext( "/jobs", this::handleJobs );
+        server.createContext( "/shutdown", this::handleShutdown );
+    }
+
+    public DownloadServer start()
+    {
+        server.start();
+        logger.info( "Listening on http://{}:{}/jobs", server.getAddress().getHostString(), getPort() );
+        return this;
+    }
+
+    public int getPort()
+    {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Blocks until the daemon is stopped via the API or closed.
+     *
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void awaitTermination() throws InterruptedException
+    {
+        stopped.await();
+    }
+
+    @Override
+    public void close()
+    {
+        server.stop( 0 );
+        ( (ExecutorService) server.getExecutor() ).shutdownNow();
+        workers.shutdownNow();
+        cm.shutdown();
+        stopped.countDown();
+    }
+
+    /**
+     * Queues a download, or returns the existing job if the same URL and target is already queued or running.
+     *
+     * @param url the remote url.
+     * @param target the target file, or null to use the final filename of the remote.
+     * @param partCount the number of parts, or 0 for the default.
+     * @param minimumSplit the minimum split, or null for the default.
+     * @return the job.
+     * @throws MalformedURLException if the url is invalid.
+     */
+    synchronized Job submit( String url, String target, int partCount, Integer minimumSplit )
+                    throws MalformedURLException
+    {
+        URL remote = new URL( url );
+        if ( !"http".equals( remote.getProtocol() ) && !"https".equals( remote.getProtocol() ) )
+        {
+            throw new MalformedURLException( "Only http and https URLs are accepted: " + url );
+        }
+        if ( target == null || target.isEmpty() )
+        {
+            target = FilenameUtils.getName( remote.getFile() );
+        }
+        target = new File( target ).getAbsolutePath();
+
+        String key = remote.toString() + '\n' + target;
+        Job existing = active.get( key );
+
+        if ( existing != null )
+        {
+            logger.debug( "Job {} already handles {} to {}", existing.id, url, target );
+            return existing;
+        }
+
+        Job job = new Job( Long.toString( nextId.incrementAndGet() ), remote, target );
+        active.put( key, job );
+        jobs.put( job.id, job );
+
+        workers.submit( () -> run( key, job, partCount, minimumSplit ) );
+
+        return job;
+    }
+
+    synchronized Job getJob( String id )
+    {
+        return jobs.get( id );
+    }
+
+    private void run( String key, Job job, int partCount, Integer minimumSplit )
+    {
+        job.started = System.nanoTime();
+        job.status = Status.RUNNING;
+        try
+        {
+            JDownloader downloader = new JDownloader( job.remote ).target( job.target ).connectionManager( cm );
+
+            if ( partCount > 0 )
+            {
+                downloader.partCount( partCount );
+            }
+            if ( minimumSplit != null )
+            {
+                downloader.minimumSplit( minimumSplit );
+            }
+            downloader.execute();
+
+            job.bytes = new File( job.target ).length();
+            job.status = Status.COMPLETED;
+        }
+        catch ( Exception e )
+        {
+            logger.error( "Job {} failed to download {}", job.id, job.remote, e );
+            job.error = e.toString();
+            job.status = Status.FAILED;
+        }
+        finally
+        {
+            job.finished = System.nanoTime();
+            synchronized ( this )
+            {
+                active.remove( key, job );
+            }
+            job.done.countDown();
+        }
+    }
+
+    private void handleJobs( HttpExchange exchange ) throws IOException
+    {
+        if ( !authorize( exchange ) )
+        {
+            return;
+        }
+        try
+        {
+            boolean post = "POST".equals( exchange.getRequestMethod() );
+            if ( post && !isJson( exchange ) )
+            {
+                respond( exchange, HttpURLConnection.HTTP_UNSUPPORTED_TYPE, "{\"error\":\"Use application/json\"}" );
+                return;
+            }
+            Map<String, String> parameters = post ? parseJson( IOUtils.toString( exchange.getRequestBody(), StandardCharsets.UTF_8 ) )
+                            : parameters( exchange );
+            String path = exchange.getRequestURI().getPath();
+            boolean wait = Boolean.parseBoolean( parameters.get( "wait" ) );
+
+            if ( path.equals( "/jobs" ) || path.equals( "/jobs/" ) )
+            {
+                if ( post )
+                {
+                    String url = parameters.get( "url" );
+                    if ( url == null )
+                    {
+                        respond( exchange, HttpURLConnection.HTTP_BAD_REQUEST, "{\"error\":\"No url specified\"}" );
+                        return;
+                    }
+                    Job job = submit( url, parameters.get( "out" ),
+                                      parameters.containsKey( "parts" ) ? Integer.parseInt( parameters.get( "parts" ) ) : 0,
+                                      parameters.containsKey( "split" ) ? Integer.valueOf( parameters.get( "split" ) ) : null );
+                    respond( exchange, job, wait );
+                }
+                else
+                {
+                    List<String> result = new ArrayList<>();
+                    synchronized ( this )
+                    {
+                        jobs.values().forEach( j -> result.add( j.toJson() ) );
+                    }
+                    respond( exchange, HttpURLConnection.HTTP_OK, "[" + String.join( ",", result ) + "]" );
+                }
+            }
+            else
+            {
+                Job job = getJob( path.substring( "/jobs/".length() ) );
+                if ( job == null )
+                {
+                    respond( exchange, HttpURLConnection.HTTP_NOT_FOUND, "{\"error\":\"No such job\"}" );
+                }
+                else
+                {
+                    respond( exchange, job, wait );
+                }
+            }
+        }
+        catch ( IllegalArgumentException | MalformedURLException e )
+        {
+            respond( exchange, HttpURLConnection.HTTP_BAD_REQUEST, "{\"error\":\"" + escape( e.getMessage() ) + "\"}" );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            respond( exchange, HttpURLConnection.HTTP_UNAVAILABLE, "{\"error\":\"Interrupted\"}" );
+        }
+    }
+
+    private void handleShutdown( HttpExchange exchange ) throws IOException
+    {
+        if ( !authorize( exchange ) )
+        {
+            return;
+        }
+        if ( !"POST".equals( exchange.getRequestMethod() ) )
+        {
+            respond( exchange, HttpURLConnection.HTTP_BAD_METHOD, "{\"error\":\"Use POST\"}" );
+            return;
+        }
+        respond( exchange, HttpURLConnection.HTTP_OK, "{}" );
+        logger.info( "Shutting down" );
+        new Thread( this::close ).start();
+    }
+
+    private void respond( HttpExchange exchange, Job job, boolean wait ) throws IOException, InterruptedException
+    {
+        if ( wait )
+        {
+            job.done.await();
+        }
+        respond( exchange, job.status == Status.FAILED ? HttpURLConnection.HTTP_INTERNAL_ERROR : HttpURLConnection.HTTP_OK,
+                 job.toJson() );
+    }
+
+    private static void respond( HttpExchange exchange, int status, String body ) throws IOException
+    {
+        byte[] content = ( body + '\n' ).getBytes( StandardCharsets.UTF_8 );
+
+        exchange.getResponseHeaders().set( "Content-Type", "application/json" );
+        exchange.sendResponseHeaders( status, content.length );
+        try ( OutputStream out = exchange.getResponseBody() )
+        {
+            out.write( content );
+        }
+    }
+
+    /**
+     * Checks the Host, Origin and bearer token of the request, responding with an error if any is unacceptable.
+     * The Host and Origin checks stop a web page reaching the daemon through DNS rebinding or a cross site request.
+     *
+     * @return true if the request may proceed.
+     */
+    private boolean authorize( HttpExchange exchange ) throws IOException
+    {
+        String host = exchange.getRequestHeaders().getFirst( "Host" );
+        String origin = exchange.getRequestHeaders().getFirst( "Origin" );
+
+        if ( host == null || !isLoopback( host ) || ( origin != null && !isLoopbackOrigin( origin ) ) )
+        {
+            logger.warn( "Refusing request with Host {} and Origin {}", host, origin );
+            respond( exchange, HttpURLConnection.HTTP_FORBIDDEN, "{\"error\":\"Forbidden\"}" );
+            return false;
+        }
+        String provided = exchange.getRequestHeaders().getFirst( "Authorization" );
+        if ( provided == null || !MessageDigest.isEqual( authorization, provided.getBytes( StandardCharsets.UTF_8 ) ) )
+        {
+            exchange.getResponseHeaders().set( "WWW-Authenticate", "Bearer" );
+            respond( exchange, HttpURLConnection.HTTP_UNAUTHORIZED, "{\"error\":\"Missing or invalid token\"}" );
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param host a Host header value, optionally with a port.
+     */
+    private boolean isLoopback( String host )
+    {
+        int port = host.lastIndexOf( ':' );
+        if ( port > host.lastIndexOf( ']' ) )
+        {
+            if ( !host.substring( port + 1 ).equals( Integer.toString( getPort() ) ) )
+            {
+                return false;
+            }
+            host = host.substring( 0, port );
+        }
+        return LOOPBACK_HOSTS.contains( host.toLowerCase() );
+    }
+
+    private boolean isLoopbackOrigin( String origin )
+    {
+        try
+        {
+            URI uri = new URI( origin );
+            return "http".equals( uri.getScheme() ) && uri.getRawAuthority() != null && isLoopback( uri.getRawAuthority() );
+        }
+        catch ( URISyntaxException e )
+        {
+            return false;
+        }
+    }
+
+    private static boolean isJson( HttpExchange exchange )
+    {
+        String type = exchange.getRequestHeaders().getFirst( "Content-Type" );
+        return type != null && type.split( ";" )[0].trim().equalsIgnoreCase( "application/json" );
+    }
+
+    /**
+     * Reads the token from the file, or creates the file with a random token if it does not exist. On filesystems
+     * supporting POSIX permissions the file must not be accessible by group or others.
+     *
+     * @param tokenFile the file holding the token.
+     * @return the token.
+     * @throws IOException if unable to read or create the file, or it is accessible by others.
+     */
+    static String loadToken( Path tokenFile ) throws IOException
+    {
+        boolean posix = tokenFile.getFileSystem().supportedFileAttributeViews().contains( "posix" );
+
+        if ( Files.exists( tokenFile ) )
+        {
+            if ( posix && !OWNER_ONLY.equals( Files.getPosixFilePermissions( tokenFile ) ) )
+            {
+                throw new IOException( "Token file " + tokenFile + " must only be readable and writable by its owner (0600)" );
+            }
+            String token = new String( Files.readAllBytes( tokenFile ), StandardCharsets.UTF_8 ).trim();
+            if ( token.isEmpty() )
+            {
+                throw new IOException( "Token file " + tokenFile + " is empty" );
+            }
+            return token;
+        }
+
+        byte[] random = new byte[TOKEN_BYTES];
+        new SecureRandom().nextBytes( random );
+        String token = ByteUtils.toHex( random );
+
+        if ( tokenFile.toAbsolutePath().getParent() != null )
+        {
+            Files.createDirectories( tokenFile.toAbsolutePath().getParent() );
+        }
+        if ( posix )
+        {
+            Files.createFile( tokenFile, PosixFilePermissions.asFileAttribute( OWNER_ONLY ) );
+        }
+        else
+        {
+            Files.createFile( tokenFile );
+        }
+        Files.write( tokenFile, token.getBytes( StandardCharsets.UTF_8 ) );
+        LoggerFactory.getLogger( DownloadServer.class ).info( "Created token file {}", tokenFile );
+
+        return token;
+    }
+
+    private static Map<String, String> parameters( HttpExchange exchange )
+    {
+        Map<String, String> result = new HashMap<>();
+        String query = exchange.getRequestURI().getRawQuery();
+
+        if ( query != null )
+        {
+            URLEncodedUtils.parse( query, StandardCharsets.UTF_8 ).forEach( p -> result.put( p.getName(), p.getValue() ) );
+        }
+        return result;
+    }
+
+    /**
+     * Parses a flat JSON object whose values are strings, numbers, booleans or null; values are returned as their
+     * string form.
+     *
+     * @param body the JSON text.
+     * @return the members of the object.
+     * @throws IllegalArgumentException if the text is not such an object.
+     */
+    static Map<String, String> parseJson( String body )
+    {
+        Map<String, String> result = new HashMap<>();
+        int[] at = { 0 };
+
+        expect( body, at, '{' );
+        if ( peek( body, at ) == '}' )
+        {
+            at[0]++;
+        }
+        else
+        {
+            char next;
+            do
+            {
+                String name = readString( body, at );
+                expect( body, at, ':' );
+                String value;
+                if ( peek( body, at ) == '"' )
+                {
+                    value = readString( body, at );
+                }
+                else
+                {
+                    int start = at[0];
+                    while ( at[0] < body.length() && "{}[],:\" \t\r\n".indexOf( body.charAt( at[0] ) ) < 0 )
+                    {
+                        at[0]++;
+                    }
+                    value = body.substring( start, at[0] );
+                    if ( !value.matches( "true|false|null|-?\\d+(\\.\\d+)?([eE][+-]?\\d+)?" ) )
+                    {
+                        throw new IllegalArgumentException( "Malformed JSON value at offset " + start );
+                    }
+                }
+                if ( !"null".equals( value ) )
+                {
+                    result.put( name, value );
+                }
+                next = peek( body, at );
+                at[0]++;
+            }
+            while ( next == ',' );
+
+            if ( next != '}' )
+            {
+                throw new IllegalArgumentException( "Malformed JSON at offset " + ( at[0] - 1 ) );
+            }
+        }
+        if ( at[0] < body.length() && !body.substring( at[0] ).trim().isEmpty() )
+        {
+            throw new IllegalArgumentException( "Unexpected content after JSON object at offset " + at[0] );
+        }
+        return result;
+    }
+
+    /**
+     * Skips whitespace and returns the next character without consuming it.
+     */
+    private static char peek( String body, int[] at )
+    {
+        while ( at[0] < body.length() && Character.isWhitespace( body.charAt( at[0] ) ) )
+        {
+            at[0]++;
+        }
+        if ( at[0] >= body.length() )
+        {
+            throw new IllegalArgumentException( "Unexpected end of JSON" );
+        }
+        return body.charAt( at[0] );
+    }
+
+    private static void expect( String body, int[] at, char c )
+    {
+        if ( peek( body, at ) != c )
+        {
+            throw new IllegalArgumentException( "Expected '" + c + "' in JSON at offset " + at[0] );
+        }
+        at[0]++;
+    }
+
+    private static String readString( String body, int[] at )
+    {
+        expect( body, at, '"' );
+        StringBuilder result = new StringBuilder();
+
+        while ( true )
+        {
+            if ( at[0] >= body.length() )
+            {
+                throw new IllegalArgumentException( "Unterminated JSON string" );
+            }
+            char c = body.charAt( at[0]++ );
+            if ( c == '"' )
+            {
+                return result.toString();
+            }
+            if ( c != '\\' )
+            {
+                result.append( c );
+                continue;
+            }
+            if ( at[0] >= body.length() )
+            {
+                throw new IllegalArgumentException( "Unterminated JSON string" );
+            }
+            char escaped = body.charAt( at[0]++ );
+            switch ( escaped )
+            {
+                case 'b':
+                    result.append( '\b' );
+                    break;
+                case 'f':
+                    result.append( '\f' );
+                    break;
+                case 'n':
+                    result.append( '\n' );
+                    break;
+                case 'r':
+                    result.append( '\r' );
+                    break;
+                case 't':
+                    result.append( '\t' );
+                    break;
+                case 'u':
+                    if ( at[0] + 4 > body.length() )
+                    {
+                        throw new IllegalArgumentException( "Unterminated JSON escape" );
+                    }
+                    result.append( (char) Integer.parseInt( body.substring( at[0], at[0] + 4 ), 16 ) );
+                    at[0] += 4;
+                    break;
+                default:
+                    result.append( escaped );
+            }
+        }
+    }
+
+    static String escape( String value )
+    {
+        if ( value == null )
+        {
+            return "";
+        }
+        StringBuilder result = new StringBuilder();
+        for ( char c : value.toCharArray() )
+        {
+            if ( c == '"' || c == '\\' )
+            {
+                result.append( '\\' ).append( c );
+            }
+            else if ( c < 0x20 )
+            {
+                result.append( String.format( "\\u%04x", (int) c ) );
+            }
+            else
+            {
+                result.append( c );
+            }
+        }
+        return result.toString();
+    }
+
+    static class Job
+    {
+        private final String id;
+
+        private final URL remote;
+
+        private final String target;
+
+        private final CountDownLatch done = new CountDownLatch( 1 );
+
+        private volatile Status status = Status.QUEUED;
+
+        private volatile String error;
+
+        private volatile long bytes;
+
+        private volatile long started;
+
+        private volatile long finished;
+
+        private Job( String id, URL remote, String target )
+        {
+            this.id = id;
+            this.remote = remote;
+            this.target = target;
+        }
+
+        String getId()
+        {
+            return id;
+        }
+
+        Status getStatus()
+        {
+            return status;
+        }
+
+        boolean isFinished()
+        {
+            return status == Status.COMPLETED || status == Status.FAILED;
+        }
+
+        boolean await( long timeout, TimeUnit unit ) throws InterruptedException
+        {
+            return done.await( timeout, unit );
+        }
+
+        String toJson()
+        {
+            long elapsed = started == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis( ( finished == 0 ? System.nanoTime() : finished ) - started );
+
+            return "{\"id\":\"" + id + "\",\"url\":\"" + escape( remote.toString() ) + "\",\"target\":\"" + escape( target )
+                            + "\",\"status\":\"" + status + "\",\"bytes\":" + bytes + ",\"millis\":" + elapsed
+                            + ( error == null ? "" : ",\"error\":\"" + escape( error ) + '"' ) + '}';
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2019 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.jdownloader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes parts into a shared {@link FileChannel} according to a {@link SyncPolicy}. Optionally the small
+ * contiguous writes of each part are coalesced per thread into larger positional writes, which are only issued
+ * once the coalescing buffer fills or the part completes; this must not be used where content is read back
+ * before its part completes. Coalescing buffers are released as each part completes and when the writer is
+ * closed, so long-lived threads do not retain them.
+ */
+class DurablePartWriter
+                implements PartWriter, Closeable
+{
+    static final int COALESCE_DEFAULT = 1024 * 1024;
+
+    private final Logger logger = LoggerFactory.getLogger( DurablePartWriter.class );
+
+    private final FilePartWriter delegate;
+
+    private final FileChannel channel;
+
+    private final SyncPolicy policy;
+
+    private final int coalesce;
+
+    private final Map<Thread, Pending> pending = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService periodic;
+
+    /**
+     * @param channel the target.
+     * @param path the path of the target, allowing direct copies from local files, or null.
+     * @param policy when to force content to the device.
+     * @param interval the interval in milliseconds for {@link SyncPolicy#PERIODIC}.
+     * @param coalesce the size of the per-thread coalescing buffer, or 0 to write through.
+     */
+    DurablePartWriter( FileChannel channel, Path path, SyncPolicy policy, long interval, int coalesce )
+    {
+        this.delegate = new FilePartWriter( channel, path );
+        this.channel = channel;
+        this.policy = policy;
+        this.coalesce = coalesce;
+
+        if ( policy == SyncPolicy.PERIODIC )
+        {
+            periodic = Executors.newSingleThreadScheduledExecutor( r -> {
+                Thread thread = new Thread( r, "jdownloader-sync" );
+                thread.setDaemon( true );
+                return thread;
+            } );
+            periodic.scheduleWithFixedDelay( this::sync, interval, interval, TimeUnit.MILLISECONDS );
+        }
+    }
+
+    @Override
+    public void write( long position, ByteBuffer src ) throws IOException
+    {
+        if ( coalesce <= 0 )
+        {
+            delegate.write( position, src );
+            return;
+        }
+
+        Pending current = pending.computeIfAbsent( Thread.currentThread(), t -> new Pending() );
+
+        if ( current.buffer.position() > 0 && ( position != current.end || src.remaining() > current.buffer.remaining() ) )
+        {
+            flush( current );
+        }
+        if ( src.remaining() >= coalesce )
+        {
+            delegate.write( position, src );
+            return;
+        }
+        if ( current.buffer.position() == 0 )
+        {
+            current.start = position;
+        }
+        current.end = position + src.remaining();
+        current.buffer.put( src );
+    }
+
+    @Override
+    public long transferFrom( FileChannel src, long position, long count ) throws IOException
+    {
+        if ( coalesce > 0 )
+        {
+            Pending current = pending.get( Thread.currentThread() );
+            if ( current != null && current.buffer.position() > 0 )
+            {
+                flush( current );
+            }
+        }
+        return delegate.transferFrom( src, position, count );
+    }
+
+    @Override
+    public void read( long position, ByteBuffer dst ) throws IOException
+    {
+        delegate.read( position, dst );
+    }
+
+    @Override
+    public void complete( long from, long to ) throws IOException
+    {
+        Pending current = pending.remove( Thread.currentThread() );
+        if ( current != null )
+        {
+            flush( current );
+        }
+        if ( policy == SyncPolicy.PART )
+        {
+            channel.force( false );
+        }
+    }
+
+    /**
+     * Releases any coalescing buffers, stops any periodic sync and, unless the policy is {@link SyncPolicy#NONE}, forces the content and metadata
+     * to the device.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        pending.clear();
+        if ( periodic != null )
+        {
+            // Interrupting a thread in force would close the channel, so allow any running sync to finish.
+            periodic.shutdown();
+            try
+            {
+                periodic.awaitTermination( 1, TimeUnit.MINUTES );
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if ( policy != SyncPolicy.NONE )
+        {
+            channel.force( true );
+        }
+    }
+
+    private void flush( Pending current ) throws IOException
+    {
+        ( (Buffer) current.buffer ).flip();
+        try
+        {
+            delegate.write( current.start, current.buffer );
+        }
+        finally
+        {
+            ( (Buffer) current.buffer ).clear();
+        }
+    }
+
+    private void sync()
+    {
+        try
+        {
+            channel.force( false );
+        }
+        catch ( IOException e )
+        {
+            logger.error( "Unable to sync", e );
+        }
+    }
+
+    private class Pending
+    {
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect( coalesce );
+
+        private long start;
+
+        private long end;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2019 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.jdownloader;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes parts positionally into a shared {@link FileChannel}. If the path of the file is known, copies from other
+ * files use {@link FileChannel#transferTo} (sendfile or copy_file_range, depending on the JDK) through a channel of
+ * their own, as transferTo writes at the position of the destination channel rather than at a given offset.
+ */
+class FilePartWriter
+                implements PartWriter
+{
+    private final FileChannel channel;
+
+    private final Path path;
+
+    FilePartWriter( FileChannel channel )
+    {
+        this( channel, null );
+    }
+
+    FilePartWriter( FileChannel channel, Path path )
+    {
+        this.channel = channel;
+        this.path = path;
+    }
+
+    @Override
+    public void write( long position, ByteBuffer src ) throws IOException
+    {
+        while ( src.hasRemaining() )
+        {
+            position += channel.write( src, position );
+        }
+    }
+
+    @Override
+    public long transferFrom( FileChannel src, long position, long count ) throws IOException
+    {
+        if ( path == null )
+        {
+            return PartWriter.super.transferFrom( src, position, count );
+        }
+
+        try ( FileChannel dst = FileChannel.open( path, StandardOpenOption.WRITE ) )
+        {
+            dst.position( position );
+
+            long copied = 0;
+            while ( copied < count )
+            {
+                long transferred = src.transferTo( position + copied, count - copied, dst );
+                if ( transferred <= 0 )
+                {
+                    break;
+                }
+                copied += transferred;
+            }
+            return copied;
+        }
+    }
+
+    @Override
+    public void read( long position, ByteBuffer dst ) throws IOException
+    {
+        while ( dst.hasRemaining() )
+        {
+            int count = channel.read( dst, position );
+            if ( count < 0 )
+            {
+                throw new EOFException( "Unable to read beyond end of file at " + position );
+            }
+            position += count;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2019 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.jdownloader;
+
+import org.goots.jdownloader.utils.InternalException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A file:// source, such as a file on an NFS or CephFS mount. Each range is read through its own channel, so
+ * network filesystems see several concurrent streams, and is copied with {@link FileChannel#transferTo} where the
+ * writer supports it so the content need not pass through user space.
+ */
+class FileSource
+                implements Source
+{
+    private final Logger logger = LoggerFactory.getLogger( FileSource.class );
+
+    private final URL remote;
+
+    private final Path file;
+
+    private final Tracer tracer;
+
+    FileSource( URL remote, Tracer tracer ) throws URISyntaxException
+    {
+        this.remote = remote;
+        this.file = Paths.get( remote.toURI() );
+        this.tracer = tracer;
+    }
+
+    @Override
+    public long probe() throws IOException, InternalException
+    {
+        record( Tracer.Event.PROBE_START, 0 );
+
+        if ( !Files.isRegularFile( file ) )
+        {
+            throw new InternalException( "Invalid URL (" + remote + ") ; no such file" );
+        }
+        long size = Files.size( file );
+
+        record( Tracer.Event.PROBE_END, 0 );
+        return size;
+    }
+
+    @Override
+    public Callable<Void> range( PartWriter writer, AtomicLong byteCount, int partIndex, long from, long to )
+    {
+        return () -> {
+            if ( tracer != null )
+            {
+                Tracer.setPart( partIndex );
+            }
+            record( Tracer.Event.REQUEST, from );
+
+            try ( FileChannel channel = FileChannel.open( file, StandardOpenOption.READ ) )
+            {
+                long count = Math.max( 0, Math.min( to + 1, channel.size() ) - from );
+
+                logger.debug( "Part {} copying {} bytes from {}", partIndex, count, from );
+
+                long copied = writer.transferFrom( channel, from, count );
+                if ( copied != count )
+                {
+                    throw new IOException( "Part " + partIndex + " expected " + count + " bytes but copied " + copied );
+                }
+                byteCount.addAndGet( copied );
+                record( Tracer.Event.BYTES, copied );
+
+                writer.complete( from, from + copied );
+            }
+            catch ( Throwable e )
+            {
+                record( Tracer.Event.ERROR, 0 );
+                throw e;
+            }
+            finally
+            {
+                record( Tracer.Event.PART_END, 0 );
+                if ( tracer != null )
+                {
+                    Tracer.clearPart();
+                }
+            }
+            return null;
+        };
+    }
+
+    @Override
+    public long transfer( PartWriter writer ) throws IOException, InternalException
+    {
+        probe();
+
+        record( Tracer.Event.REQUEST, 0 );
+        try ( FileChannel channel = FileChannel.open( file, StandardOpenOption.READ ) )
+        {
+            long copied = writer.transferFrom( channel, 0, channel.size() );
+            record( Tracer.Event.BYTES, copied );
+            return copied;
+        }
+        finally
+        {
+            record( Tracer.Event.PART_END, 0 );
+        }
+    }
+
+    @Override
+    public Content open() throws IOException, InternalException
+    {
+        long size = probe();
+
+        record( Tracer.Event.REQUEST, 0 );
+        InputStream in = Files.newInputStream( file );
+
+        return new Content( in, size, () -> {
+            try
+            {
+                in.close();
+            }
+            finally
+            {
+                record( Tracer.Event.PART_END, 0 );
+            }
+        } );
+    }
+
+    private void record( Tracer.Event event, long value )
+    {
+        if ( tracer != null )
+        {
+            tracer.record( event, value );
+        }
+    }
+}
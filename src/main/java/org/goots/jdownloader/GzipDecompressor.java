@@ -0,0 +1,418 @@
+/*
+ * Copyright (C) 2019 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.jdownloader;
+
+import org.goots.jdownloader.utils.InternalException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decompresses a gzip stream as it arrives. Blocked gzip (BGZF, as produced by bgzip) records the size of each
+ * member in its header, so members are located without inflating and are inflated concurrently, then written in
+ * order. Any other gzip, including plain multi-member files, has no such index and is inflated sequentially.
+ */
+class GzipDecompressor
+                implements Callable<Long>
+{
+    private static final int GZIP_MAGIC = 0x8b1f;
+
+    private static final int ZSTD_MAGIC = 0xFD2FB528;
+
+    private static final int DEFLATE = 8;
+
+    private static final int FHCRC = 0x02;
+
+    private static final int FEXTRA = 0x04;
+
+    private static final int FNAME = 0x08;
+
+    private static final int FCOMMENT = 0x10;
+
+    private static final int HEADER_SIZE = 12;
+
+    private static final int TRAILER_SIZE = 8;
+
+    private final Logger logger = LoggerFactory.getLogger( GzipDecompressor.class );
+
+    private final InputStream in;
+
+    private final OutputStream out;
+
+    private final int threads;
+
+    GzipDecompressor( InputStream in, OutputStream out, int threads )
+    {
+        this.in = new BufferedInputStream( in );
+        this.out = out;
+        this.threads = threads;
+    }
+
+    @Override
+    public Long call() throws IOException, InternalException, InterruptedException
+    {
+        DataInputStream data = new DataInputStream( in );
+        byte[] header = new byte[HEADER_SIZE];
+        boolean blocked = false;
+
+        // Peek at the first header (and its extra field) to determine whether the members are indexed.
+        in.mark( HEADER_SIZE + 0xFFFF );
+        try
+        {
+            data.readFully( header );
+
+            if ( readInt( header, 0 ) == ZSTD_MAGIC )
+            {
+                throw new InternalException( "Zstandard decompression is not supported" );
+            }
+            if ( readShort( header, 0 ) != GZIP_MAGIC )
+            {
+                throw new InternalException( "Content is not in gzip format" );
+            }
+            if ( ( header[3] & FEXTRA ) != 0 )
+            {
+                byte[] extra = new byte[readShort( header, 10 )];
+                data.readFully( extra );
+                blocked = blockSize( extra ) > 0;
+            }
+        }
+        catch ( EOFException e )
+        {
+            throw new InternalException( "Content is not in gzip format", e );
+        }
+        in.reset();
+
+        long written = blocked ? inflateBlocks() : inflateSequential();
+
+        logger.debug( "Decompressed {} bytes", written );
+        return written;
+    }
+
+    /**
+     * Inflates each member in turn until the end of the stream. GZIPInputStream is not used as it only looks for a
+     * following member if the source reports bytes as available, so may silently stop at a member boundary.
+     */
+    private long inflateSequential() throws IOException
+    {
+        logger.debug( "Decompressing gzip sequentially" );
+
+        byte[] input = new byte[64 * 1024];
+        byte[] output = new byte[64 * 1024];
+        PushbackInputStream source = new PushbackInputStream( in, input.length );
+        DataInputStream data = new DataInputStream( source );
+        Inflater inflater = new Inflater( true );
+        CRC32 crc = new CRC32();
+        long written = 0;
+
+        try
+        {
+            int first;
+            while ( ( first = source.read() ) != -1 )
+            {
+                source.unread( first );
+                skipHeader( data );
+
+                inflater.reset();
+                crc.reset();
+                long size = 0;
+                int supplied = 0;
+
+                while ( !inflater.finished() )
+                {
+                    if ( inflater.needsInput() )
+                    {
+                        supplied = source.read( input );
+                        if ( supplied == -1 )
+                        {
+                            throw new EOFException( "Unexpected end of gzip member" );
+                        }
+                        inflater.setInput( input, 0, supplied );
+                    }
+
+                    int count = inflater.inflate( output );
+                    if ( count == 0 && inflater.needsDictionary() )
+                    {
+                        throw new IOException( "Gzip member requires a preset dictionary" );
+                    }
+                    out.write( output, 0, count );
+                    crc.update( output, 0, count );
+                    size += count;
+                }
+
+                // Return whatever the inflater did not consume, which starts with the trailer.
+                source.unread( input, supplied - inflater.getRemaining(), inflater.getRemaining() );
+
+                byte[] trailer = new byte[TRAILER_SIZE];
+                data.readFully( trailer );
+
+                if ( Integer.toUnsignedLong( readInt( trailer, 0 ) ) != crc.getValue() )
+                {
+                    throw new IOException( "Gzip member failed CRC check" );
+                }
+                if ( readInt( trailer, 4 ) != (int) size )
+                {
+                    throw new IOException( "Gzip member inflated to " + size + " bytes but its trailer records "
+                                                           + Integer.toUnsignedLong( readInt( trailer, 4 ) ) );
+                }
+                written += size;
+            }
+        }
+        catch ( DataFormatException e )
+        {
+            throw new IOException( "Gzip member is corrupt", e );
+        }
+        finally
+        {
+            inflater.end();
+        }
+        return written;
+    }
+
+    /**
+     * Reads the header of a member, skipping its optional fields.
+     */
+    private static void skipHeader( DataInputStream data ) throws IOException
+    {
+        byte[] header = new byte[10];
+        data.readFully( header );
+
+        if ( readShort( header, 0 ) != GZIP_MAGIC || header[2] != DEFLATE )
+        {
+            throw new IOException( "Unexpected data after gzip member" );
+        }
+
+        int flags = header[3];
+        if ( ( flags & FEXTRA ) != 0 )
+        {
+            byte[] length = new byte[2];
+            data.readFully( length );
+            data.readFully( new byte[readShort( length, 0 )] );
+        }
+        if ( ( flags & FNAME ) != 0 )
+        {
+            skipString( data );
+        }
+        if ( ( flags & FCOMMENT ) != 0 )
+        {
+            skipString( data );
+        }
+        if ( ( flags & FHCRC ) != 0 )
+        {
+            data.readFully( new byte[2] );
+        }
+    }
+
+    private static void skipString( DataInputStream data ) throws IOException
+    {
+        while ( data.readByte() != 0 )
+        {
+            // Skip to the terminating zero.
+        }
+    }
+
+    private long inflateBlocks() throws IOException, InternalException, InterruptedException
+    {
+        logger.debug( "Decompressing blocked gzip with {} threads", threads );
+
+        DataInputStream data = new DataInputStream( in );
+        ExecutorService service = Executors.newFixedThreadPool( threads );
+        Deque<Future<byte[]>> pending = new ArrayDeque<>();
+        long written = 0;
+
+        try
+        {
+            byte[] header = new byte[HEADER_SIZE];
+
+            while ( readHeader( data, header ) )
+            {
+                if ( readShort( header, 0 ) != GZIP_MAGIC || ( header[3] & FEXTRA ) == 0 )
+                {
+                    throw new InternalException( "Blocked gzip member is missing its extra field" );
+                }
+
+                byte[] extra = new byte[readShort( header, 10 )];
+                data.readFully( extra );
+
+                int blockSize = blockSize( extra );
+                if ( blockSize < 0 )
+                {
+                    throw new InternalException( "Blocked gzip member is missing its BSIZE subfield" );
+                }
+                // The member must at least hold its header, extra field and trailer.
+                if ( blockSize < HEADER_SIZE + extra.length + TRAILER_SIZE )
+                {
+                    throw new InternalException( "Corrupt BGZF block: BSIZE " + blockSize + " is smaller than its header" );
+                }
+                byte[] block = new byte[blockSize - HEADER_SIZE - extra.length];
+                data.readFully( block );
+
+                pending.add( service.submit( () -> inflate( block ) ) );
+
+                // Bound the number of inflated blocks held in memory while waiting to be written in order.
+                if ( pending.size() > threads * 2 )
+                {
+                    written += write( pending.removeFirst() );
+                }
+            }
+            while ( !pending.isEmpty() )
+            {
+                written += write( pending.removeFirst() );
+            }
+        }
+        finally
+        {
+            service.shutdownNow();
+        }
+        return written;
+    }
+
+    private boolean readHeader( DataInputStream data, byte[] header ) throws IOException
+    {
+        int first = data.read();
+        if ( first == -1 )
+        {
+            return false;
+        }
+        header[0] = (byte) first;
+        data.readFully( header, 1, HEADER_SIZE - 1 );
+        return true;
+    }
+
+    private int write( Future<byte[]> block ) throws IOException, InternalException, InterruptedException
+    {
+        try
+        {
+            byte[] content = block.get();
+            out.write( content );
+            return content.length;
+        }
+        catch ( ExecutionException e )
+        {
+            if ( e.getCause() instanceof IOException )
+            {
+                throw (IOException) e.getCause();
+            }
+            throw new InternalException( "Unable to decompress block", e );
+        }
+    }
+
+    /**
+     * Locates the BSIZE subfield (identifiers 'B' 'C') which holds the total member size minus one.
+     *
+     * @return the member size, or -1 if there is no BSIZE subfield.
+     * @throws InternalException if a subfield extends beyond the extra field.
+     */
+    private static int blockSize( byte[] extra ) throws InternalException
+    {
+        int position = 0;
+
+        while ( position + 4 <= extra.length )
+        {
+            int length = readShort( extra, position + 2 );
+
+            if ( position + 4 + length > extra.length )
+            {
+                throw new InternalException( "Corrupt BGZF block: truncated extra subfield" );
+            }
+            if ( extra[position] == 'B' && extra[position + 1] == 'C' && length == 2 )
+            {
+                return readShort( extra, position + 4 ) + 1;
+            }
+            position += 4 + length;
+        }
+        return -1;
+    }
+
+    /**
+     * Inflates the deflate data and trailer of a single member, verifying its CRC and size.
+     */
+    private static byte[] inflate( byte[] block ) throws IOException
+    {
+        int compressed = block.length - TRAILER_SIZE;
+        long crc = Integer.toUnsignedLong( readInt( block, compressed ) );
+        int size = readInt( block, compressed + 4 );
+        if ( size < 0 )
+        {
+            throw new IOException( "Blocked gzip member is corrupt: ISIZE " + Integer.toUnsignedLong( size ) );
+        }
+        byte[] content = new byte[size];
+        Inflater inflater = new Inflater( true );
+
+        try
+        {
+            inflater.setInput( block, 0, compressed );
+
+            int inflated = 0;
+            while ( inflated < content.length && !inflater.finished() )
+            {
+                int count = inflater.inflate( content, inflated, content.length - inflated );
+                if ( count == 0 && inflater.needsInput() )
+                {
+                    break;
+                }
+                inflated += count;
+            }
+            if ( inflated != content.length )
+            {
+                throw new IOException( "Blocked gzip member inflated to " + inflated + " bytes but expected "
+                                                       + content.length );
+            }
+        }
+        catch ( DataFormatException e )
+        {
+            throw new IOException( "Blocked gzip member is corrupt", e );
+        }
+        finally
+        {
+            inflater.end();
+        }
+
+        CRC32 check = new CRC32();
+        check.update( content );
+        if ( check.getValue() != crc )
+        {
+            throw new IOException( "Blocked gzip member failed CRC check" );
+        }
+        return content;
+    }
+
+    private static int readShort( byte[] b, int offset )
+    {
+        return ( b[offset] & 0xFF ) | ( b[offset + 1] & 0xFF ) << 8;
+    }
+
+    private static int readInt( byte[] b, int offset )
+    {
+        return readShort( b, offset ) | readShort( b, offset + 2 ) << 16;
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2019 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.jdownloader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+/**
+ * Digests the content of a single range as it is written through to the delegate, so the range can be verified
+ * without reading it back. Writes must arrive in order. Completion is not passed on, so that the caller may
+ * complete the range on the delegate only once it has been verified.
+ */
+class HashingPartWriter
+                implements PartWriter
+{
+    private final PartWriter delegate;
+
+    private final MessageDigest digest;
+
+    private long length;
+
+    HashingPartWriter( PartWriter delegate, MessageDigest digest )
+    {
+        this.delegate = delegate;
+        this.digest = digest;
+    }
+
+    @Override
+    public void write( long position, ByteBuffer src ) throws IOException
+    {
+        length += src.remaining();
+        digest.update( src.duplicate() );
+        delegate.write( position, src );
+    }
+
+    @Override
+    public void read( long position, ByteBuffer dst ) throws IOException
+    {
+        delegate.read( position, dst );
+    }
+
+    /**
+     * @return the number of bytes written.
+     */
+    long getLength()
+    {
+        return length;
+    }
+
+    byte[] digest()
+    {
+        return digest.digest();
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2019 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.jdownloader;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.goots.jdownloader.utils.ByteUtils;
+import org.goots.jdownloader.utils.InternalException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An http(s) source, probed with a HEAD request and retrieved in ranges by {@link PartExtractor}s.
+ */
+class HttpSource
+                implements Source
+{
+    private final Logger logger = LoggerFactory.getLogger( HttpSource.class );
+
+    private final CloseableHttpClient pooledClient;
+
+    private final URL remote;
+
+    private final URI remoteURI;
+
+    private final Tracer tracer;
+
+    HttpSource( CloseableHttpClient pooledClient, URL remote, Tracer tracer ) throws URISyntaxException
+    {
+        this.pooledClient = pooledClient;
+        this.remote = remote;
+        this.remoteURI = remote.toURI();
+        this.tracer = tracer;
+    }
+
+    /**
+     * Issues a HEAD request to determine whether the remote may be downloaded in parts.
+     */
+    @Override
+    public long probe() throws IOException, InternalException
+    {
+        HttpHead headMethod = new HttpHead( remoteURI );
+
+        record( Tracer.Event.PROBE_START, 0 );
+        try ( CloseableHttpResponse httpResponse = pooledClient.execute( headMethod ) )
+        {
+            record( Tracer.Event.PROBE_END, httpResponse.getStatusLine().getStatusCode() );
+
+            if ( httpResponse.getStatusLine().getStatusCode() != HttpStatus.SC_OK )
+            {
+                throw new InternalException( "Invalid URL (" + remote + ") ; received response: " +
+                                                             httpResponse.getStatusLine().toString() );
+            }
+
+            Header acceptRange = httpResponse.getFirstHeader( HttpHeaders.ACCEPT_RANGES );
+
+            if ( acceptRange != null && acceptRange.getValue().equals( "bytes" ) )
+            {
+                logger.debug( "Header will accept range queries" );
+
+                Header length = httpResponse.getFirstHeader( HttpHeaders.CONTENT_LENGTH );
+
+                if ( length != null )
+                {
+                    long remoteSize = Long.parseLong( length.getValue() );
+
+                    if ( logger.isDebugEnabled() )
+                    {
+                        logger.debug( "Length of remote is {} ({})", ByteUtils.humanReadableByteCount( remoteSize ),
+                                      remoteSize );
+                    }
+                    return remoteSize;
+                }
+                else
+                {
+                    logger.error( "Remote did not specify a range" );
+                }
+            }
+            else
+            {
+                logger.error( "Remote does not accept ranges" );
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public Callable<Void> range( PartWriter writer, AtomicLong byteCount, int partIndex, long from, long to )
+    {
+        return new PartExtractor( writer, byteCount, pooledClient, remoteURI, partIndex, from, to ).tracer( tracer );
+    }
+
+    @Override
+    public long transfer( PartWriter writer ) throws IOException, InternalException
+    {
+        try ( Content content = open() )
+        {
+            return PartExtractor.transfer( content, writer, 0, tracer );
+        }
+    }
+
+    @Override
+    public Content open() throws IOException, InternalException
+    {
+        HttpGet get = new HttpGet( remoteURI );
+
+        record( Tracer.Event.REQUEST, 0 );
+        CloseableHttpResponse httpResponse = pooledClient.execute( get );
+        try
+        {
+            record( Tracer.Event.RESPONSE, httpResponse.getStatusLine().getStatusCode() );
+            if ( httpResponse.getStatusLine().getStatusCode() != HttpStatus.SC_OK )
+            {
+                throw new InternalException( "Invalid URL (" + remote + ") ; received response: " +
+                                                             httpResponse.getStatusLine().toString() );
+            }
+            HttpEntity entity = httpResponse.getEntity();
+
+            return new Content( entity.getContent(), entity.getContentLength(), () -> {
+                try
+                {
+                    httpResponse.close();
+                }
+                finally
+                {
+                    record( Tracer.Event.PART_END, 0 );
+                }
+            } );
+        }
+        catch ( InternalException | IOException | RuntimeException e )
+        {
+            httpResponse.close();
+            record( Tracer.Event.PART_END, 0 );
+            throw e;
+        }
+    }
+
+    private void record( Tracer.Event event, long value )
+    {
+        if ( tracer != null )
+        {
+            tracer.record( event, value );
+        }
+    }
+}
@@ -17,28 +17,39 @@ package org.goots.jdownloader;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
-import org.apache.http.Header;
-import org.apache.http.HttpHeaders;
-import org.apache.http.HttpStatus;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpHead;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.TeeInputStream;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.goots.jdownloader.utils.ByteUtils;
 import org.goots.jdownloader.utils.InternalException;
+import org.goots.jdownloader.utils.MemoryBudget;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
-import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicLong;
 
 public class JDownloader
@@ -46,6 +57,9 @@ public class JDownloader
     // Default of 10MB
     static final int SPLIT_DEFAULT = 10000000;
 
+    // Compressed content above 64MB is spilled to disk while decompressing rather than held in memory.
+    static final long DECOMPRESS_MEMORY_MAX = 64 * 1024 * 1024;
+
     private final Logger logger = LoggerFactory.getLogger( JDownloader.class );
 
     private int partCount = Math.max( Runtime.getRuntime().availableProcessors(), 4 );
@@ -58,7 +72,27 @@ public class JDownloader
 
     private int maxThread = partCount / 2;
 
-    private PoolingHttpClientConnectionManager cm = new PoolingHttpClientConnectionManager();
+    private long memoryBudget;
+
+    private DownloadListener listener;
+
+    private boolean decompress;
+
+    private String compressedTarget;
+
+    private Tracer tracer;
+
+    private Metalink metalink;
+
+    private Preallocation preallocation = Preallocation.SPARSE;
+
+    private SyncPolicy sync = SyncPolicy.NONE;
+
+    private long syncInterval = 1000;
+
+    private PoolingHttpClientConnectionManager cm;
+
+    private boolean sharedConnectionManager;
 
     public JDownloader ( String remote ) throws InternalException, IOException
     {
@@ -73,9 +107,20 @@ public class JDownloader
         }
 
         this.remote = remote;
+    }
 
-        cm.setDefaultMaxPerRoute( partCount );
-        cm.setMaxTotal( partCount );
+    /**
+     * Downloads the file described by a Metalink document from its mirrors, using the size it specifies rather
+     * than probing the remote. Each piece is verified against its hash as soon as it is written and refetched,
+     * from the next mirror, if it does not match; without piece hashes the whole file is verified instead.
+     * @param metalink the metalink description.
+     * @throws InternalException if no metalink specified
+     */
+    public JDownloader ( Metalink metalink ) throws InternalException
+    {
+        this( metalink == null ? null : metalink.getUrls().get( 0 ) );
+
+        this.metalink = metalink;
     }
 
     /**
@@ -122,6 +167,119 @@ public class JDownloader
         return this;
     }
 
+    /**
+     * Define the memory budget in bytes. When downloading to a buffer this is the maximum off-heap memory
+     * that may be allocated; when downloading to a file it is used to determine the thread count if
+     * maxThread is not set. Default is 0 which means the JVM direct memory limit (-XX:MaxDirectMemorySize, which
+     * itself defaults to the maximum heap size).
+     * @param memoryBudget the budget in bytes.
+     * @return this object
+     */
+    public JDownloader memoryBudget( long memoryBudget )
+    {
+        this.memoryBudget = memoryBudget;
+        return this;
+    }
+
+    /**
+     * Define a connection manager to share between downloads, so that connections are kept alive and reused
+     * rather than established for every download. It is not shut down once the download completes. Optional, if
+     * not set then a pool sized to the part count is created for, and closed after, each download.
+     * @param cm the shared connection manager.
+     * @return this object
+     */
+    public JDownloader connectionManager( PoolingHttpClientConnectionManager cm )
+    {
+        this.cm = cm;
+        this.sharedConnectionManager = true;
+        return this;
+    }
+
+    /**
+     * Define a listener to be notified as regions of the remote are written, allowing processing of the
+     * content to overlap the download. Optional.
+     * @param listener the listener.
+     * @return this object
+     */
+    public JDownloader listener( DownloadListener listener )
+    {
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * Define whether gzip content should be decompressed into the target while it is downloaded. Blocked gzip
+     * (e.g. from bgzip) is decompressed in parallel; other gzip is decompressed in order as it arrives. Unless
+     * a compressed target is set the compressed content is held in memory and never written to disk.
+     * @param decompress whether to decompress.
+     * @return this object
+     */
+    public JDownloader decompress( boolean decompress )
+    {
+        this.decompress = decompress;
+        return this;
+    }
+
+    /**
+     * Define a file to retain the compressed content in when decompressing. Optional.
+     * @param compressedTarget the compressed filename.
+     * @return this object
+     */
+    public JDownloader compressedTarget( String compressedTarget )
+    {
+        this.compressedTarget = compressedTarget;
+        return this;
+    }
+
+    /**
+     * Define a file to write a per-part timeline of the download to, covering DNS, connect, TLS, time to first
+     * byte, byte count samples, time spent writing and metalink piece retries. A {@code .jsonl} file receives one
+     * JSON event per line, otherwise the Chrome trace event format is used. Optional.
+     * @param trace the trace file.
+     * @return this object
+     */
+    public JDownloader trace( File trace )
+    {
+        this.tracer = trace == null ? null : new Tracer( trace );
+        return this;
+    }
+
+    /**
+     * Define how the target file is allocated before a multi-part download. Default is sparse, which only sets
+     * its length. Whatever the mode, the download fails early if the filesystem lacks the space for the remote.
+     * @param preallocation the preallocation mode.
+     * @return this object
+     */
+    public JDownloader preallocation( Preallocation preallocation )
+    {
+        this.preallocation = preallocation;
+        return this;
+    }
+
+    /**
+     * Define when content written to the target file is forced to the storage device. Default is never, so a
+     * completed download may not yet be durable. Unless a listener is set, the writes of each part are also
+     * coalesced into larger writes.
+     * @param sync the sync policy.
+     * @return this object
+     */
+    public JDownloader sync( SyncPolicy sync )
+    {
+        this.sync = sync;
+        return this;
+    }
+
+    /**
+     * Define the interval in milliseconds between syncs for the periodic sync policy. Default is 1000.
+     * @param syncInterval the interval in milliseconds.
+     * @return this object
+     */
+    public JDownloader syncInterval( long syncInterval )
+    {
+        this.syncInterval = syncInterval;
+        return this;
+    }
+
     /**
      * Computes a result, or throws an exception if unable to do so.
      *
@@ -131,123 +289,719 @@ public class JDownloader
      */
     public void execute() throws InternalException, IOException, URISyntaxException, InterruptedException
     {
-        long remoteSize = 0;
-        RandomAccessFile targetFile;
-        AtomicLong byteCount = new AtomicLong();
-
         // If target hasn't been set the default it to the filename portion of the original file
         if ( target == null || target.length() == 0 )
         {
-            target = FilenameUtils.getName( remote.getFile() );
+            target = FilenameUtils.getName( metalink == null ? remote.getFile() : metalink.getName() );
+
+            if ( decompress && "gz".equals( FilenameUtils.getExtension( target ) ) )
+            {
+                target = FilenameUtils.removeExtension( target );
+            }
         }
 
         logger.info( "Downloading {} to {} with partCount {} and maxThreads {}", remote, target, partCount, maxThread );
 
-        try ( CloseableHttpClient pooledClient = HttpClients.custom().setConnectionManager( cm ).build() )
+        try ( CloseableHttpClient pooledClient = newClient() )
         {
-            boolean downloadThreaded = false;
-            final URI remoteURI = remote.toURI();
+            final Source source = newSource( pooledClient, remote );
+            long remoteSize = metalink != null ? metalink.getSize() : minimumSplit > 0 ? source.probe() : -1;
 
-            if ( minimumSplit > 0 )
+            if ( metalink != null )
             {
-                // Head parser
-                HttpHead headMethod = new HttpHead( remoteURI );
+                checkSpace( new File( target ), remoteSize );
 
-                try ( CloseableHttpResponse httpResponse = pooledClient.execute( headMethod ) )
+                try ( RandomAccessFile targetFile = new RandomAccessFile( target, "rw" ) )
                 {
-                    if ( httpResponse.getStatusLine().getStatusCode() != HttpStatus.SC_OK )
+                    preallocate( targetFile, remoteSize );
+
+                    try ( DurablePartWriter writer = newWriter( targetFile.getChannel(), new File( target ).toPath() ) )
                     {
-                        throw new InternalException( "Invalid URL (" + remote + ") ; received response: " +
-                                                                     httpResponse.getStatusLine().toString() );
+                        // Pieces are completed once they match their hash, so only publish progress from then.
+                        downloadPieces( pooledClient, listener == null ? writer :
+                                        new ProgressPartWriter( writer, listener, !metalink.getPieces().isEmpty() ) );
                     }
-                    else
+                }
+            }
+            else if ( decompress )
+            {
+                decompress( source, remoteSize );
+            }
+            else if ( minimumSplit > 0 && remoteSize > minimumSplit )
+            {
+                checkSpace( new File( target ), remoteSize );
+
+                try ( RandomAccessFile targetFile = new RandomAccessFile( target, "rw" ) )
+                {
+                    // Pre-allocate the length to avoid repeated resize.
+                    preallocate( targetFile, remoteSize );
+
+                    long memory = memoryBudget > 0 ? memoryBudget : MemoryBudget.maxDirectMemory();
+                    try ( DurablePartWriter writer = newWriter( targetFile.getChannel(), new File( target ).toPath() ) )
                     {
-                        Header acceptRange = httpResponse.getFirstHeader( HttpHeaders.ACCEPT_RANGES );
+                        download( source, remoteSize, memory, track( writer ) );
+                    }
+                }
+            }
+            else
+            {
+                File fTarget = new File( target );
+                logger.debug( "Using single thread download for {} to {}", remote, fTarget );
+                FileUtils.forceMkdirParent( fTarget );
+
+                try ( FileChannel channel = FileChannel.open( fTarget.toPath(), StandardOpenOption.CREATE,
+                                                              StandardOpenOption.WRITE,
+                                                              StandardOpenOption.TRUNCATE_EXISTING );
+                      DurablePartWriter durable = newWriter( channel, fTarget.toPath() ) )
+                {
+                    PartWriter writer = track( durable );
+                    long received = source.transfer( writer );
+                    writer.complete( 0, received );
+                }
 
-                        if ( acceptRange != null && acceptRange.getValue().equals( "bytes" ) )
+                logger.info( "Completed writing {} ( {} bytes )", ByteUtils.humanReadableByteCount( fTarget.length() ),
+                             fTarget.length() );
+            }
+        }
+        finally
+        {
+            writeTrace();
+        }
+    }
+
+    /**
+     * Downloads the remote directly into a single off-heap buffer, avoiding any disk access.
+     *
+     * @return a direct buffer containing the remote content.
+     * @throws InternalException if the content is known to exceed 2GB or the memory budget
+     * @throws IOException if unable to compute a result, or content of unknown size exceeds those limits
+     * @throws URISyntaxException if unable to compute a result
+     */
+    public ByteBuffer toBuffer() throws InternalException, IOException, URISyntaxException, InterruptedException
+    {
+        List<ByteBuffer> buffers = toBuffers( true );
+
+        return buffers.isEmpty() ? ByteBuffer.allocateDirect( 0 ) : buffers.get( 0 );
+    }
+
+    /**
+     * Downloads the remote directly into off-heap buffers, avoiding any disk access. Content larger than 2GB
+     * is returned as a list of consecutive chunks.
+     *
+     * @return the direct buffers containing the remote content, in order.
+     * @throws InternalException if the content is known to exceed the memory budget
+     * @throws IOException if unable to compute a result, or content of unknown size exceeds the memory budget
+     * @throws URISyntaxException if unable to compute a result
+     */
+    public List<ByteBuffer> toBuffers() throws InternalException, IOException, URISyntaxException, InterruptedException
+    {
+        return toBuffers( false );
+    }
+
+    /**
+     * @param single whether the content must fit in a single buffer.
+     */
+    private List<ByteBuffer> toBuffers( boolean single ) throws InternalException, IOException, URISyntaxException, InterruptedException
+    {
+        logger.info( "Downloading {} to memory with partCount {} and maxThreads {}", remote, partCount, maxThread );
+
+        try ( CloseableHttpClient pooledClient = newClient() )
+        {
+            final Source source = newSource( pooledClient, remote );
+            // The size is required to allocate so always probe, but only split if requested.
+            long remoteSize = source.probe();
+
+            if ( single )
+            {
+                checkSingle( remoteSize );
+            }
+            if ( minimumSplit > 0 && remoteSize > minimumSplit )
+            {
+                long budget = checkBudget( remoteSize );
+                BufferPartWriter writer = new BufferPartWriter( remoteSize );
+
+                download( source, remoteSize, budget, track( writer ) );
+
+                return writer.getBuffers();
+            }
+            else
+            {
+                logger.debug( "Using single thread download for {} to memory", remote );
+
+                try ( Source.Content content = source.open() )
+                {
+                    long length = content.getLength();
+                    BufferPartWriter writer;
+
+                    if ( length < 0 )
+                    {
+                        // Stream into buffers that grow as the content arrives, within the same limits.
+                        long limit = single ? Math.min( budget(), Integer.MAX_VALUE ) : budget();
+                        writer = BufferPartWriter.growable( limit, single ? Integer.MAX_VALUE : BufferPartWriter.CHUNK_DEFAULT );
+                    }
+                    else
+                    {
+                        if ( single )
                         {
-                            logger.debug( "Header will accept range queries" );
-
-                            Header length = httpResponse.getFirstHeader( HttpHeaders.CONTENT_LENGTH );
-
-                            if ( length != null )
-                            {
-                                downloadThreaded = true;
-                                remoteSize = Long.parseLong( length.getValue() );
-
-                                if ( logger.isDebugEnabled() )
-                                {
-                                    logger.debug( "Length of remote is {} ({})", ByteUtils.humanReadableByteCount( remoteSize ),
-                                                  remoteSize );
-                                }
-                            }
-                            else
-                            {
-                                logger.error( "Remote did not specify a range" );
-                            }
+                            checkSingle( length );
                         }
-                        else
+                        checkBudget( length );
+                        writer = new BufferPartWriter( length );
+                    }
+
+                    PartWriter tracked = track( writer );
+                    long received = PartExtractor.transfer( content, tracked, 0, tracer );
+
+                    if ( length >= 0 && received != length )
+                    {
+                        throw new IOException( "Expected " + length + " bytes but received " + received );
+                    }
+                    tracked.complete( 0, received );
+                    logger.info( "Completed reading {} ( {} bytes )", ByteUtils.humanReadableByteCount( received ), received );
+
+                    return writer.getBuffers();
+                }
+            }
+        }
+        finally
+        {
+            writeTrace();
+        }
+    }
+
+    /**
+     * Fails before downloading if content of the given size cannot be held in a single buffer.
+     */
+    private void checkSingle( long size ) throws InternalException
+    {
+        if ( size > Integer.MAX_VALUE )
+        {
+            throw new InternalException( "Remote (" + remote + ") of " + ByteUtils.humanReadableByteCount( size )
+                                                         + " exceeds maximum buffer size; use toBuffers" );
+        }
+    }
+
+    /**
+     * Opens the remote as a ZIP/JAR archive whose entries may be listed and selectively extracted using range
+     * requests, without downloading the whole archive. The returned object should be closed once finished.
+     *
+     * @return the remote archive.
+     * @throws InternalException if the remote does not support range requests
+     * @throws IOException if unable to compute a result
+     * @throws URISyntaxException if unable to compute a result
+     */
+    public RemoteZip zip() throws InternalException, IOException, URISyntaxException
+    {
+        CloseableHttpClient pooledClient = newClient();
+
+        try
+        {
+            final Source source = newSource( pooledClient, remote );
+            long remoteSize = source.probe();
+
+            if ( remoteSize < 0 )
+            {
+                throw new InternalException( "Remote (" + remote + ") does not support range requests" );
+            }
+            return new RemoteZip( remote, source, pooledClient, remoteSize, maxThread > 0 ? maxThread : partCount );
+        }
+        catch ( InternalException | IOException e )
+        {
+            pooledClient.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Issues a HEAD request to determine whether the remote may be downloaded in parts.
+     *
+     * @return the remote size, or -1 if the remote does not support range requests.
+     */
+    long probe() throws InternalException, IOException, URISyntaxException
+    {
+        try ( CloseableHttpClient pooledClient = newClient() )
+        {
+            return newSource( pooledClient, remote ).probe();
+        }
+    }
+
+    /**
+     * Fails early, rather than part way through the download, if the target's filesystem cannot hold the remote.
+     */
+    private void checkSpace( File file, long size ) throws IOException, InternalException
+    {
+        File directory = file.getAbsoluteFile().getParentFile();
+        FileUtils.forceMkdir( directory );
+
+        long required = size - ( file.exists() ? file.length() : 0 );
+        long usable = Files.getFileStore( directory.toPath() ).getUsableSpace();
+
+        if ( required > usable )
+        {
+            throw new InternalException( "Unable to download " + ByteUtils.humanReadableByteCount( size ) + " to "
+                                                         + file + " ; only " + ByteUtils.humanReadableByteCount( usable )
+                                                         + " available" );
+        }
+    }
+
+    private void preallocate( RandomAccessFile file, long size ) throws IOException
+    {
+        file.setLength( size );
+
+        if ( preallocation == Preallocation.NATIVE )
+        {
+            // There is no Java API for fallocate so use the utility where it is installed.
+            try
+            {
+                Process process = new ProcessBuilder( "fallocate", "-l", Long.toString( size ), target )
+                                .redirectErrorStream( true ).start();
+                IOUtils.consume( process.getInputStream() );
+
+                if ( process.waitFor() == 0 )
+                {
+                    logger.debug( "Allocated {} with fallocate", target );
+                    return;
+                }
+            }
+            catch ( IOException e )
+            {
+                logger.debug( "Unable to run fallocate: {}", e.getMessage() );
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException( e );
+            }
+            logger.info( "fallocate is not available for {} ; zero filling instead", target );
+        }
+        if ( preallocation != Preallocation.SPARSE )
+        {
+            FilePartWriter writer = new FilePartWriter( file.getChannel() );
+            ByteBuffer zeros = ByteBuffer.allocateDirect( DurablePartWriter.COALESCE_DEFAULT );
+
+            for ( long position = 0; position < size; position += zeros.capacity() )
+            {
+                ( (Buffer) zeros ).clear().limit( (int) Math.min( zeros.capacity(), size - position ) );
+                writer.write( position, zeros );
+            }
+        }
+    }
+
+    private DurablePartWriter newWriter( FileChannel channel, Path path )
+    {
+        // Coalescing delays writes, so is only safe when nothing reads the content before its part completes.
+        return new DurablePartWriter( channel, path, sync, syncInterval,
+                                      listener == null ? DurablePartWriter.COALESCE_DEFAULT : 0 );
+    }
+
+    /**
+     * Local files are copied directly; everything else is retrieved over HTTP with the pooled client.
+     */
+    private Source newSource( CloseableHttpClient pooledClient, URL url ) throws URISyntaxException
+    {
+        return "file".equals( url.getProtocol() ) ? new FileSource( url, tracer ) : new HttpSource( pooledClient, url, tracer );
+    }
+
+    private CloseableHttpClient newClient()
+    {
+        if ( !sharedConnectionManager )
+        {
+            // When tracing, connections are established through factories that record each phase.
+            cm = tracer == null ? new PoolingHttpClientConnectionManager() :
+                            new PoolingHttpClientConnectionManager( tracer.socketFactories(), tracer.dnsResolver() );
+            cm.setDefaultMaxPerRoute( partCount );
+            cm.setMaxTotal( partCount );
+        }
+        return HttpClients.custom().setConnectionManager( cm ).setConnectionManagerShared( sharedConnectionManager ).build();
+    }
+
+    private void writeTrace() throws IOException
+    {
+        if ( tracer != null )
+        {
+            tracer.write();
+            logger.info( "Wrote trace to {}", tracer.getFile() );
+        }
+    }
+
+    private PartWriter track( PartWriter writer )
+    {
+        return listener == null ? writer : new ProgressPartWriter( writer, listener );
+    }
+
+    private PartWriter track( PartWriter writer, DownloadListener internal )
+    {
+        if ( listener == null )
+        {
+            return new ProgressPartWriter( writer, internal );
+        }
+        return new ProgressPartWriter( writer, new DownloadListener()
+        {
+            @Override
+            public void regionCompleted( long from, long to )
+            {
+                internal.regionCompleted( from, to );
+                listener.regionCompleted( from, to );
+            }
+
+            @Override
+            public void prefixCompleted( long length )
+            {
+                internal.prefixCompleted( length );
+                listener.prefixCompleted( length );
+            }
+        } );
+    }
+
+    /**
+     * Downloads the remote, decompressing it into the target as the contiguous prefix arrives.
+     */
+    private void decompress( Source source, long remoteSize )
+                    throws InternalException, IOException, InterruptedException
+    {
+        int threads = maxThread > 0 ? maxThread : partCount;
+        long written;
+
+        try ( OutputStream out = new BufferedOutputStream( new FileOutputStream( target ) ) )
+        {
+            if ( minimumSplit > 0 && remoteSize > minimumSplit )
+            {
+                RandomAccessFile compressedFile = null;
+                File spill = null;
+                ExecutorService service = Executors.newSingleThreadExecutor();
+
+                try
+                {
+                    PartWriter writer;
+                    long memory;
+
+                    if ( compressedTarget != null || remoteSize > Math.min( budget(), DECOMPRESS_MEMORY_MAX ) )
+                    {
+                        File compressed = compressedTarget == null ? null : new File( compressedTarget );
+                        if ( compressed == null )
                         {
-                            logger.error( "Remote does not accept ranges" );
+                            // Beside the target, which is about to be written anyway, and removed once decompressed.
+                            spill = compressed = File.createTempFile( FilenameUtils.getName( target ) + '.', ".gz.part",
+                                                                      new File( target ).getAbsoluteFile().getParentFile() );
+                            logger.debug( "Spilling {} of compressed content to {}",
+                                          ByteUtils.humanReadableByteCount( remoteSize ), spill );
                         }
+                        compressedFile = new RandomAccessFile( compressed, "rw" );
+                        compressedFile.setLength( remoteSize );
+                        writer = new FilePartWriter( compressedFile.getChannel() );
+                        memory = memoryBudget > 0 ? memoryBudget : MemoryBudget.maxDirectMemory();
+                    }
+                    else
+                    {
+                        memory = checkBudget( remoteSize );
+                        writer = new BufferPartWriter( remoteSize );
+                    }
+
+                    PrefixInputStream prefix = new PrefixInputStream( writer, remoteSize );
+                    Future<Long> decompressor = service.submit( new GzipDecompressor( prefix, out, threads ) );
+
+                    try
+                    {
+                        download( source, remoteSize, memory, track( writer, prefix ) );
+                    }
+                    catch ( InternalException | IOException | InterruptedException | RuntimeException e )
+                    {
+                        prefix.abort( e );
+                        throw e;
+                    }
+                    written = decompressor.get();
+                }
+                catch ( ExecutionException e )
+                {
+                    if ( e.getCause() instanceof IOException )
+                    {
+                        throw (IOException) e.getCause();
+                    }
+                    if ( e.getCause() instanceof InternalException )
+                    {
+                        throw (InternalException) e.getCause();
+                    }
+                    throw new InternalException( "Unable to decompress " + remote, e );
+                }
+                finally
+                {
+                    service.shutdownNow();
+                    if ( compressedFile != null )
+                    {
+                        compressedFile.close();
+                    }
+                    if ( spill != null )
+                    {
+                        Files.deleteIfExists( spill.toPath() );
                     }
                 }
             }
-
-            if ( downloadThreaded && remoteSize > minimumSplit )
+            else
             {
-                long range = remoteSize / partCount;
-                long memory = Runtime.getRuntime().maxMemory();
+                logger.debug( "Using single thread download and decompression for {} to {}", remote, target );
 
-                // If the maxThread is -1, calculate the appropriate number of threads given the current memory
-                // limits. We want to ensure we are only downloading enough simultaneously not to exceed the memory.
-                if ( maxThread <= 0 )
+                try ( Source.Content content = source.open() )
                 {
-                    maxThread = Math.toIntExact( memory / range ) ;
+                    InputStream in = content;
+
+                    if ( compressedTarget != null )
+                    {
+                        in = new TeeInputStream( content, new FileOutputStream( compressedTarget ), true );
+                    }
+                    try ( InputStream closing = in )
+                    {
+                        written = new GzipDecompressor( closing, out, threads ).call();
+                    }
+                }
+            }
+        }
 
-                    logger.info( "With memory of {} calculated maxThread to be {} with range block of {} ({})",
-                                 ByteUtils.humanReadableByteCount( memory ),
-                                 maxThread,
-                                 ByteUtils.humanReadableByteCount( range  ),
-                                 range);
+        logger.info( "Completed decompressing {} ( {} bytes )", ByteUtils.humanReadableByteCount( written ), written );
+    }
 
-                    if (maxThread == 0)
+    /**
+     * @return the off-heap memory that may be allocated for the content.
+     */
+    private long budget()
+    {
+        return memoryBudget > 0 ? memoryBudget : MemoryBudget.availableDirectMemory();
+    }
+
+    /**
+     * Verifies the content will fit within the off-heap memory budget.
+     *
+     * @return the budget
+     */
+    private long checkBudget( long size ) throws InternalException
+    {
+        long budget = budget();
+
+        if ( size > budget )
+        {
+            throw new InternalException( "Unable to download " + ByteUtils.humanReadableByteCount( size )
+                                                         + " into memory with a budget of "
+                                                         + ByteUtils.humanReadableByteCount( budget )
+                                                         + ". Increase -XX:MaxDirectMemorySize or the memory budget." );
+        }
+        return budget;
+    }
+
+    /**
+     * Retrieves the pieces described by the metalink concurrently into the writer, spreading them over the mirrors
+     * and verifying each as it is written. If there are no piece hashes the file is split into partCount pieces
+     * and verified as a whole.
+     */
+    private void downloadPieces( CloseableHttpClient pooledClient, PartWriter writer )
+                    throws InternalException, IOException, InterruptedException
+    {
+        AtomicLong byteCount = new AtomicLong();
+        long size = metalink.getSize();
+        long pieceLength = metalink.getPieceLength() > 0 ? metalink.getPieceLength() :
+                        Math.max( 1, ( size + partCount - 1 ) / partCount );
+        int pieces = Math.toIntExact( ( size + pieceLength - 1 ) / pieceLength );
+
+        ExecutorService service = Executors.newFixedThreadPool( maxThread > 0 ? maxThread : partCount );
+        List<Future<Void>> parts = new ArrayList<>( pieces );
+
+        logger.info( "Downloading {} pieces of {} from {} mirrors", pieces,
+                     ByteUtils.humanReadableByteCount( pieceLength ), metalink.getUrls().size() );
+
+        try
+        {
+            for ( int i = 0; i < pieces; i++ )
+            {
+                long from = i * pieceLength;
+                long to = Math.min( from + pieceLength, size ) - 1;
+                int piece = i;
+                parts.add( service.submit( () -> fetchPiece( pooledClient, writer, byteCount, piece, from, to ) ) );
+            }
+            for ( Future<Void> part : parts )
+            {
+                part.get();
+            }
+        }
+        catch ( ExecutionException e )
+        {
+            if ( e.getCause() instanceof IOException )
+            {
+                throw (IOException) e.getCause();
+            }
+            if ( e.getCause() instanceof InternalException )
+            {
+                throw (InternalException) e.getCause();
+            }
+            throw new InternalException( "Unable to download part of " + remote, e );
+        }
+        finally
+        {
+            service.shutdownNow();
+        }
+
+        if ( metalink.getPieces().isEmpty() )
+        {
+            verify( writer, size );
+        }
+
+        logger.info( "Completed writing {} ( {} bytes )", ByteUtils.humanReadableByteCount( size ), size );
+    }
+
+    /**
+     * Retrieves a single piece until it matches its hash. Pieces are spread over the mirrors sharing the highest
+     * priority; on failure the remaining mirrors are tried in priority order.
+     */
+    private Void fetchPiece( CloseableHttpClient pooledClient, PartWriter writer, AtomicLong byteCount, int piece,
+                             long from, long to ) throws InternalException, IOException, URISyntaxException
+    {
+        List<URL> urls = metalink.getUrls();
+        String expected = metalink.getPieces().isEmpty() ? null : metalink.getPieces().get( piece );
+        int preferred = metalink.getPreferredCount();
+        int attempts = urls.size() + 1;
+
+        for ( int attempt = 0; ; attempt++ )
+        {
+            String cause;
+            int rank = attempt % urls.size();
+            URL mirror = urls.get( rank < preferred ? ( piece + rank ) % preferred : rank );
+            HashingPartWriter hashing = expected == null ? null : new HashingPartWriter( writer, metalink.newPieceDigest() );
+
+            try
+            {
+                newSource( pooledClient, mirror ).range( hashing == null ? writer : hashing, byteCount, piece + 1, from,
+                                                         to ).call();
+
+                if ( hashing == null || expected.equals( ByteUtils.toHex( hashing.digest() ) ) )
+                {
+                    if ( hashing != null )
+                    {
+                        writer.complete( from, to + 1 );
+                    }
+                    return null;
+                }
+                cause = "hash mismatch";
+                logger.warn( "Piece {} from {} does not match its hash", piece, mirror );
+            }
+            catch ( Exception e )
+            {
+                if ( attempt + 1 >= attempts )
+                {
+                    if ( e instanceof IOException )
                     {
-                        throw new InternalException( "Unable to allocate sufficient threads with current memory "
-                                                                     + "allocation to download correctly. Increase "
-                                                                     + "-Xmx size." );
+                        throw (IOException) e;
                     }
+                    throw new InternalException( "Unable to download piece " + piece + " of " + metalink.getName(), e );
                 }
+                cause = e.toString();
+                logger.warn( "Unable to download piece {} from {}: {}", piece, mirror, e.getMessage() );
+            }
 
-                ExecutorService service = Executors.newFixedThreadPool( maxThread );
+            if ( attempt + 1 >= attempts )
+            {
+                throw new InternalException( "Piece " + piece + " of " + metalink.getName() + " does not match its "
+                                                             + "hash from any mirror" );
+            }
+            logger.info( "Refetching piece {} ( bytes {}-{} )", piece, from, to );
+            if ( tracer != null )
+            {
+                tracer.record( Tracer.Event.RETRY, piece + 1, attempt + 1, mirror + ": " + cause );
+            }
+        }
+    }
 
-                targetFile = new RandomAccessFile( target, "rw" );
-                // Pre-allocate the length to avoid repeated resize.
-                targetFile.setLength( remoteSize );
+    /**
+     * Verifies the whole file against the strongest supported hash of the metalink, if any.
+     */
+    private void verify( PartWriter writer, long size ) throws InternalException, IOException
+    {
+        for ( String type : new String[] { "sha-512", "sha-384", "sha-256", "sha-1", "md5" } )
+        {
+            String expected = metalink.getHashes().get( type );
 
-                for ( int i = 1; i <= partCount; i++ )
+            if ( expected != null )
+            {
+                MessageDigest digest = Metalink.digest( type );
+                ByteBuffer buffer = ByteBuffer.allocateDirect( DurablePartWriter.COALESCE_DEFAULT );
+
+                for ( long position = 0; position < size; position += buffer.capacity() )
                 {
-                    service.submit( new PartExtractor( target, byteCount, pooledClient, partCount, remoteURI,
-                                                       remoteSize,
-                                                       range,
-                                                       i ) );
+                    ( (Buffer) buffer ).clear().limit( (int) Math.min( buffer.capacity(), size - position ) );
+                    writer.read( position, buffer );
+                    ( (Buffer) buffer ).flip();
+                    digest.update( buffer );
                 }
 
+                String actual = ByteUtils.toHex( digest.digest() );
+                if ( !expected.equals( actual ) )
+                {
+                    throw new InternalException( "Checksum mismatch for " + metalink.getName() + " ; expected " + type
+                                                                 + ' ' + expected + " but got " + actual );
+                }
+                logger.debug( "Verified {} {}", type, actual );
+                return;
+            }
+        }
+    }
 
-                service.shutdown();
-                service.awaitTermination( Long.MAX_VALUE, TimeUnit.MILLISECONDS );
-                targetFile.close();
-                logger.info( "Completed writing {} ( {} bytes )", ByteUtils.humanReadableByteCount( byteCount.get() ), byteCount.get() );
+    /**
+     * Splits the remote into partCount ranges and retrieves them concurrently into the writer.
+     */
+    private void download( Source source, long remoteSize, long memory, PartWriter writer ) throws InternalException, IOException, InterruptedException
+    {
+        AtomicLong byteCount = new AtomicLong();
+        long range = remoteSize / partCount;
+        int threads = maxThread;
+
+        // If the maxThread is -1, calculate the appropriate number of threads given the current memory
+        // limits. We want to ensure we are only downloading enough simultaneously not to exceed the memory.
+        if ( threads <= 0 )
+        {
+            threads = Math.toIntExact( Math.min( memory / range, partCount ) );
+
+            logger.info( "With memory of {} calculated maxThread to be {} with range block of {} ({})",
+                         ByteUtils.humanReadableByteCount( memory ),
+                         threads,
+                         ByteUtils.humanReadableByteCount( range ),
+                         range );
+
+            if ( threads == 0 )
+            {
+                throw new InternalException( "Unable to allocate sufficient threads with current memory "
+                                                             + "allocation to download correctly. Increase "
+                                                             + "-Xmx size." );
             }
-            else
+        }
+
+        ExecutorService service = Executors.newFixedThreadPool( threads );
+        List<Future<Void>> parts = new ArrayList<>( partCount );
+
+        try
+        {
+            for ( int i = 1; i <= partCount; i++ )
             {
-                File fTarget = new File( target );
-                logger.debug( "Using copyURLToFile as single thread download for {} to {}", remote, fTarget );
-                FileUtils.copyURLToFile( remote, fTarget );
+                long from = i == 1 ? 0 : ( ( i - 1 ) * range ) + 1;
+                // https://tools.ietf.org/html/rfc7233#page-5 range is inclusive so add 1
+                long to = i == partCount ? remoteSize + 1 : i * range;
 
-                logger.info( "Completed writing {} ( {} bytes )", ByteUtils.humanReadableByteCount( fTarget.length() ),
-                             fTarget.length() );
+                parts.add( service.submit( source.range( writer, byteCount, i, from, to ) ) );
+            }
+            for ( Future<Void> part : parts )
+            {
+                part.get();
+            }
+        }
+        catch ( ExecutionException e )
+        {
+            if ( e.getCause() instanceof IOException )
+            {
+                throw (IOException) e.getCause();
             }
+            throw new InternalException( "Unable to download part of " + remote, e );
         }
+        finally
+        {
+            service.shutdownNow();
+        }
+
+        logger.info( "Completed writing {} ( {} bytes )", ByteUtils.humanReadableByteCount( byteCount.get() ),
+                     byteCount.get() );
     }
 }
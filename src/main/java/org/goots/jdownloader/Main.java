@@ -16,12 +16,17 @@
 package org.goots.jdownloader;
 
 import ch.qos.logback.classic.Level;
+import org.goots.jdownloader.utils.InternalException;
 import org.goots.jdownloader.utils.ManifestVersionProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import picocli.CommandLine;
 import picocli.CommandLine.Option;
 
+import java.io.File;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Callable;
 
@@ -30,16 +35,21 @@ import static org.goots.jdownloader.JDownloader.SPLIT_DEFAULT;
 @CommandLine.Command( name = "JDownloader",
                       description = "Multithreaded Java JDownloader",
                       versionProvider = ManifestVersionProvider.class,
-                      mixinStandardHelpOptions = true// add --help and --version options
+                      mixinStandardHelpOptions = true, // add --help and --version options
+                      subcommands = { Main.Serve.class, Main.Coordinate.class, Main.Work.class }
                       )
 public class Main implements Callable<Void>
 {
     @Option( names = { "-d", "--debug" }, description = "Enable debug." )
     private boolean debug;
 
-    @Option( names = { "--url" }, required = true, paramLabel = "URL", description = "Remote file url" )
+    @Option( names = { "--url" }, paramLabel = "URL", description = "Remote file url" )
     private String remote;
 
+    @Option( names = { "--metalink" }, paramLabel = "Metalink", description = "Path or URL of a Metalink (.meta4) "
+                    + "document describing the file, its mirrors and piece hashes, to use instead of --url." )
+    private String metalink;
+
     @Option( names = { "--out" }, paramLabel = "Output", description = "Local file" )
     private String target;
 
@@ -53,13 +63,56 @@ public class Main implements Callable<Void>
                     + " 0 which means automatically determine based upon memory and part count." )
     private int maxThread = 0;
 
+    @Option( names = { "--preallocate" }, paramLabel = "Mode", description = "How to allocate Output before a multi-part "
+                    + "download: ${COMPLETION-CANDIDATES} (default: ${DEFAULT-VALUE})." )
+    private Preallocation preallocation = Preallocation.SPARSE;
+
+    @Option( names = { "--sync" }, paramLabel = "Policy", description = "When to force Output to disk: "
+                    + "${COMPLETION-CANDIDATES} (default: ${DEFAULT-VALUE})." )
+    private SyncPolicy sync = SyncPolicy.NONE;
+
+    @Option( names = { "--sync-interval" }, paramLabel = "Millis", description = "Interval between syncs for the "
+                    + "PERIODIC policy (default: ${DEFAULT-VALUE})." )
+    private long syncInterval = 1000;
+
+    @Option( names = { "--decompress" }, description = "Decompress gzip content into Output while downloading." )
+    private boolean decompress;
+
+    @Option( names = { "--keep-compressed" }, paramLabel = "Compressed-Output", description = "Also retain the "
+                    + "compressed content in this file when decompressing." )
+    private String compressedTarget;
+
+    @Option( names = { "--maven" }, paramLabel = "GAV", description = "Fetch the Maven artifact "
+                    + "groupId:artifactId[:extension[:classifier]]:version and its pom, with checksums, from the URL "
+                    + "repository into the Output local repository (default: repository). May be repeated." )
+    private List<String> coordinates;
+
+    @Option( names = { "--maven-list" }, paramLabel = "GAV-File", description = "File of Maven artifacts to fetch, one per line." )
+    private File coordinateFile;
+
+    @Option( names = { "--recursive" }, description = "Mirror the URL directory and its subdirectories from their "
+                    + "index listings into the Output directory (default: working directory), skipping unchanged files." )
+    private boolean recursive;
+
+    @Option( names = { "--trace" }, paramLabel = "Trace-File", description = "Write a per-part timeline of the download "
+                    + "to this file; JSON lines if it ends in .jsonl, otherwise Chrome trace event format." )
+    private File trace;
+
+    @Option( names = { "--list" }, description = "List the entries of a remote ZIP/JAR archive without downloading it." )
+    private boolean list;
+
+    @Option( names = { "--extract" }, paramLabel = "Entry", description = "Extract the named entry of a remote ZIP/JAR "
+                    + "archive into the Output directory (default: working directory). May be repeated." )
+    private List<String> entries;
+
     public static void main( String[] args ) throws Exception
     {
         final ExceptionHandler<List<Object>> handler = new ExceptionHandler<>();
         try
         {
+            // Only run the subcommand, if any, as the top level command requires a download to be specified.
             CommandLine cl = new CommandLine( new Main() );
-            cl.parseWithHandlers( new CommandLine.RunAll(), handler, args );
+            cl.parseWithHandlers( new CommandLine.RunLast(), handler, args );
         }
         catch ( CommandLine.ExecutionException e )
         {
@@ -84,8 +137,68 @@ public class Main implements Callable<Void>
         {
             enableDebug();
         }
+        if ( remote == null && metalink == null )
+        {
+            throw new InternalException( "Either --url or --metalink must be specified" );
+        }
 
-        new JDownloader( remote ).target( target ).partCount( partCount ).minimumSplit( minimumSplit ).maxThread( maxThread ).execute();
+        if ( coordinates != null || coordinateFile != null )
+        {
+            List<String> artifacts = new ArrayList<>();
+            if ( coordinates != null )
+            {
+                artifacts.addAll( coordinates );
+            }
+            if ( coordinateFile != null )
+            {
+                Files.readAllLines( coordinateFile.toPath() ).stream().map( String::trim ).filter( l -> !l.isEmpty() && !l.startsWith( "#" ) ).forEach( artifacts::add );
+            }
+
+            MavenFetcher fetcher = new MavenFetcher( remote ).localRepository( new File( target == null ? "repository" : target ) );
+            if ( maxThread > 0 )
+            {
+                fetcher.threads( maxThread );
+            }
+            fetcher.fetch( artifacts );
+
+            return null;
+        }
+
+        if ( recursive )
+        {
+            DirectoryMirror mirror = new DirectoryMirror( remote ).target( new File( target == null ? "." : target ) )
+                                                                  .partCount( partCount ).minimumSplit( minimumSplit );
+            if ( maxThread > 0 )
+            {
+                mirror.connections( maxThread );
+            }
+            mirror.mirror();
+
+            return null;
+        }
+
+        JDownloader downloader = ( metalink == null ? new JDownloader( remote ) : new JDownloader( Metalink.load( metalink ) ) ).target( target ).partCount( partCount ).minimumSplit( minimumSplit ).maxThread( maxThread )
+                                                .preallocation( preallocation ).sync( sync ).syncInterval( syncInterval )
+                                                .decompress( decompress ).compressedTarget( compressedTarget ).trace( trace );
+
+        if ( list || entries != null )
+        {
+            try ( RemoteZip zip = downloader.zip() )
+            {
+                if ( list )
+                {
+                    zip.list().forEach( e -> System.out.println( String.format( "%12d  %s", e.getSize(), e.getName() ) ) );
+                }
+                if ( entries != null )
+                {
+                    zip.extract( new File( target == null ? "." : target ), entries.toArray( new String[0] ) );
+                }
+            }
+        }
+        else
+        {
+            downloader.execute();
+        }
 
         return null;
     }
@@ -98,6 +211,123 @@ public class Main implements Callable<Void>
         rootLogger.setLevel( Level.DEBUG );
     }
 
+    @CommandLine.Command( name = "serve",
+                          description = "Run JDownloader as a daemon accepting jobs over a loopback HTTP API",
+                          versionProvider = ManifestVersionProvider.class,
+                          mixinStandardHelpOptions = true )
+    static class Serve implements Callable<Void>
+    {
+        @Option( names = { "-d", "--debug" }, description = "Enable debug." )
+        private boolean debug;
+
+        @Option( names = { "--port" }, paramLabel = "Port", description = "Loopback port to listen on (default: ${DEFAULT-VALUE})." )
+        private int port = 8090;
+
+        @Option( names = { "-w" }, paramLabel = "Workers", description = "Number of jobs to run concurrently (default: ${DEFAULT-VALUE})." )
+        private int workers = Runtime.getRuntime().availableProcessors();
+
+        @Option( names = { "-c" }, paramLabel = "Connections", description = "Maximum pooled connections shared by all jobs (default: ${DEFAULT-VALUE})." )
+        private int connections = 64;
+
+        @Option( names = { "--token-file" }, paramLabel = "File", description = "Owner only (0600) file holding the bearer "
+                        + "token clients must send; created with a random token if absent (default: ${DEFAULT-VALUE})." )
+        private File tokenFile = new File( System.getProperty( "user.home" ), ".jdownloader/token" );
+
+        @Override
+        public Void call() throws Exception
+        {
+            if ( debug )
+            {
+                new Main().enableDebug();
+            }
+
+            try ( DownloadServer server = new DownloadServer( port, workers, connections, tokenFile.toPath() ).start() )
+            {
+                server.awaitTermination();
+            }
+            return null;
+        }
+    }
+
+    @CommandLine.Command( name = "coordinate",
+                          description = "Coordinate a download shared between several worker processes writing to "
+                                          + "common storage",
+                          versionProvider = ManifestVersionProvider.class,
+                          mixinStandardHelpOptions = true )
+    static class Coordinate implements Callable<Void>
+    {
+        @Option( names = { "-d", "--debug" }, description = "Enable debug." )
+        private boolean debug;
+
+        @Option( names = { "--url" }, required = true, paramLabel = "URL", description = "Remote file url" )
+        private String remote;
+
+        @Option( names = { "--out" }, required = true, paramLabel = "Output", description = "Target on storage shared "
+                        + "with the workers" )
+        private File target;
+
+        @Option( names = { "--port" }, paramLabel = "Port", description = "Port to listen for workers on (default: ${DEFAULT-VALUE})." )
+        private int port = 8091;
+
+        @Option( names = { "--lease" }, paramLabel = "Size", description = "Size in bytes of each range leased to a worker (default: ${DEFAULT-VALUE})." )
+        private long leaseSize = ShardCoordinator.LEASE_SIZE_DEFAULT;
+
+        @Option( names = { "--lease-timeout" }, paramLabel = "Millis", description = "Time a worker may hold a lease "
+                        + "before it is reassigned (default: ${DEFAULT-VALUE})." )
+        private long leaseTimeout = ShardCoordinator.LEASE_TIMEOUT_DEFAULT;
+
+        @Override
+        public Void call() throws Exception
+        {
+            if ( debug )
+            {
+                new Main().enableDebug();
+            }
+
+            try ( ShardCoordinator coordinator = new ShardCoordinator( new URL( remote ), target, port )
+                            .leaseSize( leaseSize ).leaseTimeout( leaseTimeout ).start() )
+            {
+                coordinator.awaitCompletion();
+            }
+            return null;
+        }
+    }
+
+    @CommandLine.Command( name = "work",
+                          description = "Download the ranges leased by a coordinator into common storage",
+                          versionProvider = ManifestVersionProvider.class,
+                          mixinStandardHelpOptions = true )
+    static class Work implements Callable<Void>
+    {
+        @Option( names = { "-d", "--debug" }, description = "Enable debug." )
+        private boolean debug;
+
+        @Option( names = { "--host" }, paramLabel = "Host", description = "Coordinator host (default: ${DEFAULT-VALUE})." )
+        private String host = "localhost";
+
+        @Option( names = { "--port" }, paramLabel = "Port", description = "Coordinator port (default: ${DEFAULT-VALUE})." )
+        private int port = 8091;
+
+        @Option( names = { "--out" }, paramLabel = "Output", description = "Path of the shared target on this host "
+                        + "(default: the coordinator's path)" )
+        private String target;
+
+        @Option( names = { "-t" }, paramLabel = "Threads", description = "Number of leases to download concurrently (default: ${DEFAULT-VALUE})." )
+        private int threads = Math.max( Runtime.getRuntime().availableProcessors(), 4 );
+
+        @Override
+        public Void call() throws Exception
+        {
+            if ( debug )
+            {
+                new Main().enableDebug();
+            }
+
+            new ShardWorker( host, port ).target( target ).threads( threads ).call();
+            return null;
+        }
+    }
+
     private static class ExceptionHandler<R>
                     extends CommandLine.DefaultExceptionHandler<R>
     {
@@ -0,0 +1,375 @@
+/*
+ * Copyright (C) 2019 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.jdownloader;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.goots.jdownloader.utils.ByteUtils;
+import org.goots.jdownloader.utils.InternalException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fetches a set of Maven artifacts, together with their poms and checksum sidecars, from a remote repository into
+ * a local repository layout. All files share a single connection pool and thread pool. Each file is verified
+ * against its sidecars while it is streamed, and files already present locally with a valid checksum are skipped.
+ */
+public class MavenFetcher
+{
+    private static final String[] CHECKSUMS = { "sha256", "sha1" };
+
+    private final Logger logger = LoggerFactory.getLogger( MavenFetcher.class );
+
+    private final String repository;
+
+    private File localRepository = new File( "repository" );
+
+    private int threads = Math.max( Runtime.getRuntime().availableProcessors(), 4 ) * 2;
+
+    private final AtomicInteger downloaded = new AtomicInteger();
+
+    private final AtomicInteger skipped = new AtomicInteger();
+
+    private final AtomicLong byteCount = new AtomicLong();
+
+    public MavenFetcher( String repository ) throws InternalException
+    {
+        if ( repository == null || repository.isEmpty() )
+        {
+            throw new InternalException( "No repository specified" );
+        }
+        this.repository = repository.endsWith( "/" ) ? repository : repository + '/';
+    }
+
+    /**
+     * Define the local repository to write to. Optional, defaults to repository in the working directory.
+     * @param localRepository the local repository root.
+     * @return this object.
+     */
+    public MavenFetcher localRepository( File localRepository )
+    {
+        this.localRepository = localRepository;
+        return this;
+    }
+
+    /**
+     * Define the number of files to fetch concurrently. Defaults to twice the number of processors or 8
+     * whichever is greater.
+     * @param threads number of threads and connections.
+     * @return this object
+     */
+    public MavenFetcher threads( int threads )
+    {
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * Fetches each artifact and its pom, with their checksum sidecars.
+     *
+     * @param coordinates artifacts in the form groupId:artifactId[:extension[:classifier]]:version
+     * @throws InternalException if any artifact is missing or fails checksum verification
+     * @throws IOException if unable to write to the local repository
+     */
+    public void fetch( Collection<String> coordinates ) throws InternalException, IOException, InterruptedException
+    {
+        // Coordinates may share files, such as the pom of an artifact and its sources, which must be fetched once.
+        Set<String> paths = new LinkedHashSet<>();
+
+        for ( String coordinate : coordinates )
+        {
+            paths.addAll( resolve( coordinate ) );
+        }
+
+        logger.info( "Fetching {} files for {} artifacts from {} to {} with {} threads", paths.size(),
+                     coordinates.size(), repository, localRepository, threads );
+
+        PoolingHttpClientConnectionManager cm = new PoolingHttpClientConnectionManager();
+        cm.setDefaultMaxPerRoute( threads );
+        cm.setMaxTotal( threads );
+
+        ExecutorService service = Executors.newFixedThreadPool( threads );
+        Map<String, Future<Void>> pending = new LinkedHashMap<>();
+        List<String> failures = new ArrayList<>();
+
+        try ( CloseableHttpClient pooledClient = HttpClients.custom().setConnectionManager( cm ).build() )
+        {
+            for ( String path : paths )
+            {
+                pending.put( path, service.submit( () -> fetchFile( pooledClient, path ) ) );
+            }
+            for ( Map.Entry<String, Future<Void>> entry : pending.entrySet() )
+            {
+                try
+                {
+                    entry.getValue().get();
+                }
+                catch ( ExecutionException e )
+                {
+                    logger.error( "Unable to fetch {}: {}", entry.getKey(), e.getCause().getMessage() );
+                    failures.add( entry.getKey() );
+                }
+            }
+        }
+        finally
+        {
+            service.shutdownNow();
+        }
+
+        logger.info( "Completed fetching {} files ( {} ) and skipped {} existing files", downloaded.get(),
+                     ByteUtils.humanReadableByteCount( byteCount.get() ), skipped.get() );
+
+        if ( !failures.isEmpty() )
+        {
+            throw new InternalException( "Unable to fetch " + failures );
+        }
+    }
+
+    /**
+     * Converts coordinates into the repository paths of the artifact and its pom.
+     *
+     * @param coordinate groupId:artifactId[:extension[:classifier]]:version
+     * @return the relative paths.
+     * @throws InternalException if the coordinate is invalid.
+     */
+    static List<String> resolve( String coordinate ) throws InternalException
+    {
+        String[] parts = coordinate.trim().split( ":" );
+
+        if ( parts.length < 3 || parts.length > 5 )
+        {
+            throw new InternalException( "Invalid coordinate " + coordinate );
+        }
+
+        String groupId = parts[0];
+        String artifactId = parts[1];
+        String version = parts[parts.length - 1];
+        String extension = parts.length > 3 ? parts[2] : "jar";
+        String classifier = parts.length > 4 ? '-' + parts[3] : "";
+        String base = groupId.replace( '.', '/' ) + '/' + artifactId + '/' + version + '/' + artifactId + '-' + version;
+
+        List<String> result = new ArrayList<>();
+        result.add( base + classifier + '.' + extension );
+        if ( !"pom".equals( extension ) )
+        {
+            result.add( base + ".pom" );
+        }
+        return result;
+    }
+
+    private Void fetchFile( CloseableHttpClient pooledClient, String path )
+                    throws InternalException, IOException, URISyntaxException, NoSuchAlgorithmException
+    {
+        File target = new File( localRepository, path );
+        Map<String, String> expected = new LinkedHashMap<>();
+
+        // Previously fetched files are verified against their local sidecars without any remote access.
+        if ( target.exists() )
+        {
+            for ( String algorithm : CHECKSUMS )
+            {
+                File sidecar = new File( localRepository, path + '.' + algorithm );
+                String checksum = sidecar.exists() ? parseChecksum( FileUtils.readFileToString( sidecar, StandardCharsets.UTF_8 ) ) : null;
+                if ( checksum != null )
+                {
+                    expected.put( algorithm, checksum );
+                }
+            }
+            if ( !expected.isEmpty() && expected.equals( digest( target, expected ) ) )
+            {
+                logger.debug( "Skipping existing {}", path );
+                skipped.incrementAndGet();
+                return null;
+            }
+            expected.clear();
+        }
+
+        for ( String algorithm : CHECKSUMS )
+        {
+            String checksum = fetchChecksum( pooledClient, path, algorithm );
+            if ( checksum != null )
+            {
+                expected.put( algorithm, checksum );
+            }
+        }
+        if ( expected.isEmpty() )
+        {
+            logger.warn( "No checksum available for {}; content will not be verified", path );
+        }
+
+        if ( target.exists() && !expected.isEmpty() && expected.equals( digest( target, expected ) ) )
+        {
+            logger.debug( "Skipping existing {}", path );
+            skipped.incrementAndGet();
+            return null;
+        }
+
+        Files.createDirectories( target.getParentFile().toPath() );
+        File partial = new File( target.getPath() + ".part" );
+        Map<String, MessageDigest> digests = digests( expected );
+
+        HttpGet get = new HttpGet( new URI( repository + path ) );
+        try ( CloseableHttpResponse httpResponse = pooledClient.execute( get ) )
+        {
+            if ( httpResponse.getStatusLine().getStatusCode() != HttpStatus.SC_OK )
+            {
+                throw new InternalException( "Invalid URL (" + repository + path + ") ; received response: " +
+                                                             httpResponse.getStatusLine().toString() );
+            }
+
+            InputStream in = httpResponse.getEntity().getContent();
+            for ( MessageDigest digest : digests.values() )
+            {
+                in = new DigestInputStream( in, digest );
+            }
+            try ( InputStream content = in; OutputStream out = Files.newOutputStream( partial.toPath() ) )
+            {
+                byteCount.addAndGet( IOUtils.copyLarge( content, out ) );
+            }
+        }
+
+        for ( Map.Entry<String, MessageDigest> digest : digests.entrySet() )
+        {
+            String actual = ByteUtils.toHex( digest.getValue().digest() );
+
+            if ( !actual.equals( expected.get( digest.getKey() ) ) )
+            {
+                FileUtils.deleteQuietly( partial );
+                throw new InternalException( "Checksum mismatch for " + path + " ; expected " + digest.getKey() + ' '
+                                                             + expected.get( digest.getKey() ) + " but got " + actual );
+            }
+        }
+
+        Files.move( partial.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+        downloaded.incrementAndGet();
+
+        logger.debug( "Fetched {} ( {} )", path, ByteUtils.humanReadableByteCount( target.length() ) );
+        return null;
+    }
+
+    /**
+     * Retrieves the sidecar, storing it locally alongside the artifact.
+     *
+     * @return the lower-case hex checksum or null if the remote has no such sidecar, or an empty one.
+     */
+    private String fetchChecksum( CloseableHttpClient pooledClient, String path, String algorithm )
+                    throws IOException, URISyntaxException, InternalException
+    {
+        String sidecar = path + '.' + algorithm;
+        HttpGet get = new HttpGet( new URI( repository + sidecar ) );
+
+        try ( CloseableHttpResponse httpResponse = pooledClient.execute( get ) )
+        {
+            if ( httpResponse.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_FOUND )
+            {
+                return null;
+            }
+            if ( httpResponse.getStatusLine().getStatusCode() != HttpStatus.SC_OK )
+            {
+                throw new InternalException( "Invalid URL (" + repository + sidecar + ") ; received response: " +
+                                                             httpResponse.getStatusLine().toString() );
+            }
+
+            String content = IOUtils.toString( httpResponse.getEntity().getContent(), StandardCharsets.UTF_8 );
+            String checksum = parseChecksum( content );
+
+            if ( checksum == null )
+            {
+                logger.warn( "Ignoring empty checksum {}", repository + sidecar );
+                return null;
+            }
+            File target = new File( localRepository, sidecar );
+
+            Files.createDirectories( target.getParentFile().toPath() );
+            Files.write( target.toPath(), content.getBytes( StandardCharsets.UTF_8 ) );
+
+            return checksum;
+        }
+    }
+
+    /**
+     * Sidecars may be of the form "&lt;checksum&gt;  &lt;filename&gt;".
+     */
+    private static String parseChecksum( String content )
+    {
+        String[] tokens = content.trim().split( "\\s+" );
+        return tokens[0].isEmpty() ? null : tokens[0].toLowerCase();
+    }
+
+    private static Map<String, String> digest( File file, Map<String, String> expected )
+                    throws IOException, NoSuchAlgorithmException
+    {
+        Map<String, MessageDigest> digests = digests( expected );
+        InputStream in = new FileInputStream( file );
+
+        for ( MessageDigest digest : digests.values() )
+        {
+            in = new DigestInputStream( in, digest );
+        }
+        try ( InputStream content = in )
+        {
+            IOUtils.consume( content );
+        }
+
+        Map<String, String> result = new LinkedHashMap<>();
+        digests.forEach( ( k, v ) -> result.put( k, ByteUtils.toHex( v.digest() ) ) );
+        return result;
+    }
+
+    private static Map<String, MessageDigest> digests( Map<String, String> expected ) throws NoSuchAlgorithmException
+    {
+        Map<String, MessageDigest> result = new LinkedHashMap<>();
+
+        for ( String algorithm : expected.keySet() )
+        {
+            result.put( algorithm, MessageDigest.getInstance( "sha1".equals( algorithm ) ? "SHA-1" : "SHA-256" ) );
+        }
+        return result;
+    }
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2019 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.jdownloader;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.goots.jdownloader.utils.InternalException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The description of a file from a Metalink (RFC 5854) document: its name, size, hashes of the whole file and of
+ * each fixed length piece, and its mirrors in priority order. Only the first file of a document is used.
+ */
+public class Metalink
+{
+    private static final String NAMESPACE = "urn:ietf:params:xml:ns:metalink";
+
+    private static final int PRIORITY_DEFAULT = Integer.MAX_VALUE;
+
+    private final String name;
+
+    private final long size;
+
+    private final Map<String, String> hashes;
+
+    private final String pieceType;
+
+    private final long pieceLength;
+
+    private final List<String> pieces;
+
+    private final List<URL> urls;
+
+    private final int preferred;
+
+    private Metalink( String name, long size, Map<String, String> hashes, String pieceType, long pieceLength,
+                      List<String> pieces, List<URL> urls, int preferred )
+    {
+        this.name = name;
+        this.size = size;
+        this.hashes = Collections.unmodifiableMap( hashes );
+        this.pieceType = pieceType;
+        this.pieceLength = pieceLength;
+        this.pieces = Collections.unmodifiableList( pieces );
+        this.urls = Collections.unmodifiableList( urls );
+        this.preferred = preferred;
+    }
+
+    /**
+     * Reads a Metalink document.
+     *
+     * @param location a local path or an http(s) URL.
+     * @return the first file described by the document.
+     * @throws InternalException if the document is invalid or does not describe a usable file.
+     * @throws IOException if unable to read the document.
+     */
+    public static Metalink load( String location ) throws InternalException, IOException
+    {
+        if ( location.startsWith( "http://" ) || location.startsWith( "https://" ) )
+        {
+            try ( CloseableHttpClient client = HttpClients.createDefault();
+                  CloseableHttpResponse httpResponse = client.execute( new HttpGet( location ) ) )
+            {
+                if ( httpResponse.getStatusLine().getStatusCode() != HttpStatus.SC_OK )
+                {
+                    throw new InternalException( "Invalid URL (" + location + ") ; received response: " +
+                                                                 httpResponse.getStatusLine().toString() );
+                }
+                return parse( httpResponse.getEntity().getContent() );
+            }
+        }
+        try ( InputStream in = new FileInputStream( new File( location ) ) )
+        {
+            return parse( in );
+        }
+    }
+
+    static Metalink parse( InputStream in ) throws InternalException, IOException
+    {
+        Document document;
+        try
+        {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware( true );
+            factory.setFeature( XMLConstants.FEATURE_SECURE_PROCESSING, true );
+            factory.setFeature( "http://apache.org/xml/features/disallow-doctype-decl", true );
+            document = factory.newDocumentBuilder().parse( in );
+        }
+        catch ( ParserConfigurationException | SAXException e )
+        {
+            throw new InternalException( "Unable to parse metalink", e );
+        }
+
+        NodeList files = document.getElementsByTagNameNS( NAMESPACE, "file" );
+        if ( files.getLength() == 0 )
+        {
+            throw new InternalException( "Metalink does not describe any file" );
+        }
+
+        Element file = (Element) files.item( 0 );
+        String name = file.getAttribute( "name" );
+        Element sizeElement = child( file, "size" );
+
+        if ( sizeElement == null )
+        {
+            throw new InternalException( "Metalink does not specify the size of " + name );
+        }
+
+        Map<String, String> hashes = new LinkedHashMap<>();
+        for ( Element hash : children( file, "hash" ) )
+        {
+            hashes.put( hash.getAttribute( "type" ).toLowerCase(), hash.getTextContent().trim().toLowerCase() );
+        }
+
+        String pieceType = null;
+        long pieceLength = 0;
+        List<String> pieces = new ArrayList<>();
+        Element piecesElement = child( file, "pieces" );
+
+        if ( piecesElement != null )
+        {
+            pieceType = piecesElement.getAttribute( "type" ).toLowerCase();
+            pieceLength = parseNumber( piecesElement.getAttribute( "length" ), "pieces length" );
+            if ( pieceLength <= 0 )
+            {
+                throw new InternalException( "Metalink has an invalid pieces length: " + pieceLength );
+            }
+            for ( Element hash : children( piecesElement, "hash" ) )
+            {
+                pieces.add( hash.getTextContent().trim().toLowerCase() );
+            }
+        }
+
+        List<Element> urlElements = children( file, "url" );
+        for ( Element url : urlElements )
+        {
+            String priority = url.getAttribute( "priority" );
+            long value = priority.isEmpty() ? PRIORITY_DEFAULT : parseNumber( priority, "url priority" );
+            if ( value != (int) value )
+            {
+                throw new InternalException( "Metalink has an invalid url priority: " + priority );
+            }
+        }
+        // Lower values are preferred; the sort is stable so document order breaks ties.
+        urlElements.sort( Comparator.comparingInt( Metalink::priority ) );
+
+        List<URL> urls = new ArrayList<>();
+        for ( Element url : urlElements )
+        {
+            try
+            {
+                urls.add( new URL( url.getTextContent().trim() ) );
+            }
+            catch ( MalformedURLException e )
+            {
+                throw new InternalException( "Invalid mirror in metalink: " + url.getTextContent(), e );
+            }
+        }
+        if ( urls.isEmpty() )
+        {
+            throw new InternalException( "Metalink does not list any mirror for " + name );
+        }
+        int preferred = 0;
+        while ( preferred < urlElements.size() && priority( urlElements.get( preferred ) ) == priority( urlElements.get( 0 ) ) )
+        {
+            preferred++;
+        }
+
+        long size = parseNumber( sizeElement.getTextContent(), "size" );
+        if ( size < 0 )
+        {
+            throw new InternalException( "Metalink has an invalid size: " + size );
+        }
+
+        Metalink result = new Metalink( name, size, hashes, pieceType, pieceLength, pieces, urls, preferred );
+
+        if ( !pieces.isEmpty() && pieces.size() != ( result.size + pieceLength - 1 ) / pieceLength )
+        {
+            throw new InternalException( "Metalink lists " + pieces.size() + " pieces of " + pieceLength
+                                                         + " bytes for " + result.size + " bytes" );
+        }
+        return result;
+    }
+
+    /**
+     * @return the file name, which may include a relative path.
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    public long getSize()
+    {
+        return size;
+    }
+
+    /**
+     * @return the mirrors, highest priority first.
+     */
+    public List<URL> getUrls()
+    {
+        return urls;
+    }
+
+    /**
+     * @return the number of leading mirrors that share the highest priority.
+     */
+    public int getPreferredCount()
+    {
+        return preferred;
+    }
+
+    /**
+     * @return the hashes of the whole file by lower-case IANA hash name, e.g. sha-256.
+     */
+    public Map<String, String> getHashes()
+    {
+        return hashes;
+    }
+
+    /**
+     * @return the length of each piece, or 0 if there are no piece hashes.
+     */
+    public long getPieceLength()
+    {
+        return pieceLength;
+    }
+
+    /**
+     * @return the lower-case hex hash of each piece in order.
+     */
+    public List<String> getPieces()
+    {
+        return pieces;
+    }
+
+    MessageDigest newPieceDigest() throws InternalException
+    {
+        return digest( pieceType );
+    }
+
+    /**
+     * Converts an IANA hash name such as sha-256 into a digest.
+     */
+    static MessageDigest digest( String type ) throws InternalException
+    {
+        try
+        {
+            return MessageDigest.getInstance( type.toUpperCase() );
+        }
+        catch ( NoSuchAlgorithmException e )
+        {
+            throw new InternalException( "Unsupported metalink hash " + type, e );
+        }
+    }
+
+    private static int priority( Element url )
+    {
+        String priority = url.getAttribute( "priority" );
+        return priority.isEmpty() ? PRIORITY_DEFAULT : Integer.parseInt( priority.trim() );
+    }
+
+    /**
+     * Parses a numeric field of the document, which is untrusted input.
+     */
+    private static long parseNumber( String value, String field ) throws InternalException
+    {
+        try
+        {
+            return Long.parseLong( value.trim() );
+        }
+        catch ( NumberFormatException e )
+        {
+            throw new InternalException( "Metalink has an invalid " + field + ": " + value, e );
+        }
+    }
+
+    private static Element child( Element parent, String name )
+    {
+        List<Element> result = children( parent, name );
+        return result.isEmpty() ? null : result.get( 0 );
+    }
+
+    private static List<Element> children( Element parent, String name )
+    {
+        List<Element> result = new ArrayList<>();
+        NodeList nodes = parent.getChildNodes();
+
+        for ( int i = 0; i < nodes.getLength(); i++ )
+        {
+            if ( nodes.item( i ) instanceof Element && NAMESPACE.equals( nodes.item( i ).getNamespaceURI() )
+                            && name.equals( nodes.item( i ).getLocalName() ) )
+            {
+                result.add( (Element) nodes.item( i ) );
+            }
+        }
+        return result;
+    }
+}
@@ -28,16 +28,19 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
-import java.nio.channels.FileChannel;
-import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
+import java.nio.channels.ReadableByteChannel;
 import java.util.concurrent.Callable;
 import java.util.concurrent.atomic.AtomicLong;
 
 class PartExtractor implements Callable<Void>
 {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
     private final Logger logger = LoggerFactory.getLogger( PartExtractor.class );
 
     private final AtomicLong byteCount;
@@ -52,35 +55,59 @@ class PartExtractor implements Callable<Void>
 
     private final long to;
 
-    private final FileChannel channel;
+    private final PartWriter writer;
+
+    private Tracer tracer;
 
-    PartExtractor( String target, AtomicLong byteCount, CloseableHttpClient remoteClient, int partCount, URI url, long remoteSize, long range, int partIndex )
-                    throws IOException
+    /**
+     * Creates an extractor for an explicit range.
+     *
+     * @param from the offset of the first byte.
+     * @param to the offset of the last byte (inclusive).
+     */
+    PartExtractor( PartWriter writer, AtomicLong byteCount, CloseableHttpClient remoteClient, URI url, int partIndex, long from, long to )
     {
+        this.writer = writer;
         this.remoteClient = remoteClient;
         this.url = url;
         this.partIndex = partIndex;
         this.byteCount = byteCount;
-
-        from = partIndex == 1 ? 0 : ( ( ( partIndex - 1 ) * range) + 1) ;
-        to = partIndex == (long) partCount ?
-                        // https://tools.ietf.org/html/rfc7233#page-5 range is inclusive so add 1
-                        ( remoteSize + 1 ) :
-                        ( partIndex * range );
-
-        this.channel = FileChannel.open( Paths.get(target), StandardOpenOption.WRITE );
+        this.from = from;
+        this.to = to;
 
         logger.debug( "PartExtractor {} adding range from {} to {} ", partIndex, from, to );
     }
 
+    /**
+     * Define a tracer to record the timeline of this part. Optional.
+     * @param tracer the tracer.
+     * @return this object
+     */
+    PartExtractor tracer( Tracer tracer )
+    {
+        this.tracer = tracer;
+        return this;
+    }
+
     @Override
     public Void call() throws IOException
     {
         HttpGet get = new HttpGet( url );
         get.addHeader( HttpHeaders.RANGE, "bytes=" + from + "-" + to );
 
+        if ( tracer != null )
+        {
+            Tracer.setPart( partIndex );
+            tracer.record( Tracer.Event.REQUEST, from );
+        }
+
         try (CloseableHttpResponse httpResponse = remoteClient.execute( get ))
         {
+            if ( tracer != null )
+            {
+                tracer.record( Tracer.Event.RESPONSE, httpResponse.getStatusLine().getStatusCode() );
+            }
+
             if ( httpResponse.getStatusLine().getStatusCode() != HttpStatus.SC_PARTIAL_CONTENT )
             {
                 logger.error( "Did not retrieve partial content {} ", httpResponse.getStatusLine().getStatusCode() );
@@ -96,22 +123,102 @@ class PartExtractor implements Callable<Void>
                           ByteUtils.humanReadableByteCount( entity.getContentLength() ),
                           ByteUtils.humanReadableByteCount( byteCount.addAndGet( entity.getContentLength() ) ) );
 
-            // Rather than converting to a byte array using EntityUtils which increases the amount of memory
-            // required, convert to a stream and write using that.
-            channel.transferFrom( Channels.newChannel( entity.getContent() ), from, entity.getContentLength() );
-            channel.close();
+            long received = transfer( entity.getContent(), writer, from, tracer );
+
+            if ( received != entity.getContentLength() )
+            {
+                throw new IOException( "PartExtractor " + partIndex + " expected " + entity.getContentLength()
+                                                       + " bytes but received " + received );
+            }
+            writer.complete( from, from + received );
         }
         catch (Throwable e )
         {
             logger.error( "Caught throwable: ", e );
+            if ( tracer != null )
+            {
+                tracer.record( Tracer.Event.ERROR, 0 );
+            }
             throw e;
         }
         finally
         {
             get.releaseConnection();
+            if ( tracer != null )
+            {
+                tracer.record( Tracer.Event.PART_END, 0 );
+                Tracer.clearPart();
+            }
         }
 
         logger.debug ("Finished part extractor {}", partIndex);
         return null;
     }
+
+    /**
+     * Streams the content into the writer starting at the given position. Rather than converting to a byte array
+     * using EntityUtils which increases the amount of memory required, a small fixed buffer is used.
+     *
+     * @param content the stream to read; it is closed on completion.
+     * @param writer the destination.
+     * @param from the position of the first byte.
+     * @return the number of bytes transferred.
+     * @throws IOException if unable to read or write.
+     */
+    static long transfer( InputStream content, PartWriter writer, long from ) throws IOException
+    {
+        return transfer( content, writer, from, null );
+    }
+
+    /**
+     * As {@link #transfer(InputStream, PartWriter, long)} while sampling the cumulative bytes received and time
+     * spent writing, at most every {@link Tracer#SAMPLE_INTERVAL} and once at the end.
+     *
+     * @param tracer the tracer, or null.
+     */
+    static long transfer( InputStream content, PartWriter writer, long from, Tracer tracer ) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate( BUFFER_SIZE );
+        long position = from;
+        long writing = 0;
+        long sampled = System.nanoTime() - Tracer.SAMPLE_INTERVAL;
+        long sampledPosition = from;
+
+        try ( ReadableByteChannel source = Channels.newChannel( content ) )
+        {
+            while ( source.read( buffer ) != -1 )
+            {
+                ( (Buffer) buffer ).flip();
+                int length = buffer.remaining();
+
+                if ( tracer == null )
+                {
+                    writer.write( position, buffer );
+                }
+                else
+                {
+                    long start = System.nanoTime();
+                    writer.write( position, buffer );
+                    long end = System.nanoTime();
+                    writing += end - start;
+
+                    if ( end - sampled >= Tracer.SAMPLE_INTERVAL )
+                    {
+                        tracer.record( Tracer.Event.BYTES, position + length - from );
+                        tracer.record( Tracer.Event.WRITE, writing );
+                        sampled = end;
+                        sampledPosition = position + length;
+                    }
+                }
+                position += length;
+                ( (Buffer) buffer ).clear();
+            }
+        }
+        if ( tracer != null && position != sampledPosition )
+        {
+            tracer.record( Tracer.Event.BYTES, position - from );
+            tracer.record( Tracer.Event.WRITE, writing );
+        }
+        return position - from;
+    }
 }
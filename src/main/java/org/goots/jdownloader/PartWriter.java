@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2019 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.jdownloader;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Destination for the ranges retrieved by each {@link PartExtractor}. Implementations must support
+ * concurrent writes to disjoint regions, and reading back what has been written for verification and decompression.
+ */
+interface PartWriter
+{
+    /**
+     * Writes all remaining bytes of the buffer at the given absolute position.
+     *
+     * @param position the offset within the remote file.
+     * @param src the buffer to drain.
+     * @throws IOException if unable to write.
+     */
+    void write( long position, ByteBuffer src ) throws IOException;
+
+    /**
+     * Reads previously written bytes at the given absolute position until the buffer is full.
+     *
+     * @param position the offset within the remote file.
+     * @param dst the buffer to fill.
+     * @throws IOException if unable to read.
+     */
+    void read( long position, ByteBuffer dst ) throws IOException;
+
+    /**
+     * Copies bytes from a file into this writer at the same position. By default they are read into a buffer and
+     * written; implementations may copy them without passing through user space.
+     *
+     * @param src the file to copy from.
+     * @param position the offset within the file, and of the destination.
+     * @param count the number of bytes to copy.
+     * @return the number of bytes copied, which is less than the count only if the file ends first.
+     * @throws IOException if unable to read or write.
+     */
+    default long transferFrom( FileChannel src, long position, long count ) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocateDirect( (int) Math.min( Math.max( count, 1 ), 1024 * 1024 ) );
+        long copied = 0;
+
+        while ( copied < count )
+        {
+            ( (Buffer) buffer ).clear().limit( (int) Math.min( buffer.capacity(), count - copied ) );
+            if ( src.read( buffer, position + copied ) < 0 )
+            {
+                break;
+            }
+            ( (Buffer) buffer ).flip();
+            int length = buffer.remaining();
+            write( position + copied, buffer );
+            copied += length;
+        }
+        return copied;
+    }
+
+    /**
+     * Called once a region has been completely written.
+     *
+     * @param from the offset of the first byte of the region.
+     * @param to the offset after the last byte of the region.
+     * @throws IOException if unable to write or sync the region.
+     */
+    default void complete( long from, long to ) throws IOException
+    {
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2019 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.jdownloader;
+
+/**
+ * How the target file is sized before a multi-part download writes into it.
+ */
+public enum Preallocation
+{
+    /**
+     * Set the length only. On most filesystems this creates a sparse file, which is fast but may fragment and
+     * only run out of space part way through the download.
+     */
+    SPARSE,
+
+    /**
+     * Write zeros over the whole length so every block is allocated before the download starts, at the cost of
+     * writing the file twice.
+     */
+    FULL,
+
+    /**
+     * Allocate the blocks without writing them using fallocate(1) where available, otherwise as {@link #FULL}.
+     */
+    NATIVE
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2019 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.jdownloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Presents the content of a {@link PartWriter} as a stream, blocking until each byte falls within the
+ * contiguous completed prefix. This allows a sequential consumer to run concurrently with the download.
+ */
+class PrefixInputStream
+                extends InputStream
+                implements DownloadListener
+{
+    private final PartWriter source;
+
+    private final long size;
+
+    private long position;
+
+    private long available;
+
+    private Throwable failure;
+
+    PrefixInputStream( PartWriter source, long size )
+    {
+        this.source = source;
+        this.size = size;
+    }
+
+    @Override
+    public synchronized void prefixCompleted( long length )
+    {
+        available = length;
+        notifyAll();
+    }
+
+    /**
+     * Wakes any reader, which will then fail with the given cause rather than wait for content that will not arrive.
+     *
+     * @param cause the reason the download failed.
+     */
+    synchronized void abort( Throwable cause )
+    {
+        failure = cause;
+        notifyAll();
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        byte[] single = new byte[1];
+        return read( single, 0, 1 ) == -1 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read( byte[] b, int off, int len ) throws IOException
+    {
+        if ( len == 0 )
+        {
+            return 0;
+        }
+        if ( position >= size )
+        {
+            return -1;
+        }
+
+        int count = (int) Math.min( len, waitForContent() - position );
+        source.read( position, ByteBuffer.wrap( b, off, count ) );
+        position += count;
+
+        return count;
+    }
+
+    @Override
+    public synchronized int available()
+    {
+        return (int) Math.min( Integer.MAX_VALUE, available - position );
+    }
+
+    private synchronized long waitForContent() throws IOException
+    {
+        while ( available <= position )
+        {
+            if ( failure != null )
+            {
+                throw new IOException( "Download failed at offset " + position, failure );
+            }
+            try
+            {
+                wait();
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException( "Interrupted waiting for offset " + position );
+            }
+        }
+        return available;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2019 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.jdownloader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Tracks the regions written through the delegate and publishes them to a {@link DownloadListener}. Where content
+ * is verified before its region is completed, progress may instead be tracked only from completed regions so that
+ * unverified bytes are never reported.
+ */
+class ProgressPartWriter
+                implements PartWriter
+{
+    private final PartWriter delegate;
+
+    private final DownloadListener listener;
+
+    // Disjoint written intervals keyed by start offset, mapping to the end offset.
+    private final TreeMap<Long, Long> written = new TreeMap<>();
+
+    private final boolean completedOnly;
+
+    private long prefix;
+
+    ProgressPartWriter( PartWriter delegate, DownloadListener listener )
+    {
+        this( delegate, listener, false );
+    }
+
+    /**
+     * @param completedOnly whether the prefix grows only as regions are completed, rather than as they are written.
+     */
+    ProgressPartWriter( PartWriter delegate, DownloadListener listener, boolean completedOnly )
+    {
+        this.delegate = delegate;
+        this.listener = listener;
+        this.completedOnly = completedOnly;
+    }
+
+    @Override
+    public void write( long position, ByteBuffer src ) throws IOException
+    {
+        int length = src.remaining();
+        delegate.write( position, src );
+        if ( !completedOnly )
+        {
+            record( position, position + length );
+        }
+    }
+
+    @Override
+    public long transferFrom( FileChannel src, long position, long count ) throws IOException
+    {
+        long copied = delegate.transferFrom( src, position, count );
+        if ( !completedOnly )
+        {
+            record( position, position + copied );
+        }
+        return copied;
+    }
+
+    @Override
+    public void read( long position, ByteBuffer dst ) throws IOException
+    {
+        delegate.read( position, dst );
+    }
+
+    @Override
+    public void complete( long from, long to ) throws IOException
+    {
+        delegate.complete( from, to );
+
+        synchronized ( this )
+        {
+            listener.regionCompleted( from, to );
+            if ( completedOnly )
+            {
+                record( from, to );
+            }
+        }
+    }
+
+    private synchronized void record( long from, long to )
+    {
+        long start = from;
+        long end = to;
+
+        Map.Entry<Long, Long> floor = written.floorEntry( from );
+        if ( floor != null && floor.getValue() >= from )
+        {
+            start = floor.getKey();
+            end = Math.max( end, floor.getValue() );
+        }
+
+        Iterator<Map.Entry<Long, Long>> following = written.tailMap( start, true ).entrySet().iterator();
+        while ( following.hasNext() )
+        {
+            Map.Entry<Long, Long> next = following.next();
+            if ( next.getKey() > end )
+            {
+                break;
+            }
+            end = Math.max( end, next.getValue() );
+            following.remove();
+        }
+        written.put( start, end );
+
+        if ( start == 0 && end > prefix )
+        {
+            prefix = end;
+            listener.prefixCompleted( prefix );
+        }
+    }
+}
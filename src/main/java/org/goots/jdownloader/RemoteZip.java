@@ -0,0 +1,521 @@
+/*
+ * Copyright (C) 2019 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.jdownloader;
+
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.goots.jdownloader.utils.ByteUtils;
+import org.goots.jdownloader.utils.InternalException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Provides access to the entries of a remote ZIP/JAR archive using range requests, so that the archive
+ * itself is never downloaded. Only the end of central directory record, the central directory and the
+ * requested entries are retrieved. Created via {@link JDownloader#zip()}.
+ */
+public class RemoteZip
+                implements Closeable
+{
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+
+    private static final int EOCD_SIZE = 22;
+
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+
+    private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+
+    private static final int ZIP64_EOCD_SIZE = 56;
+
+    private static final int CENTRAL_SIGNATURE = 0x02014b50;
+
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+
+    private static final int LOCAL_HEADER_SIZE = 30;
+
+    private static final int ZIP64_EXTRA = 0x0001;
+
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+    private final Logger logger = LoggerFactory.getLogger( RemoteZip.class );
+
+    private final URL remote;
+
+    private final Source source;
+
+    private final CloseableHttpClient remoteClient;
+
+    private final long remoteSize;
+
+    private final int maxThread;
+
+    private final AtomicLong byteCount = new AtomicLong();
+
+    private Map<String, Entry> entries;
+
+    RemoteZip( URL remote, Source source, CloseableHttpClient remoteClient, long remoteSize, int maxThread )
+    {
+        this.remote = remote;
+        this.source = source;
+        this.remoteClient = remoteClient;
+        this.remoteSize = remoteSize;
+        this.maxThread = maxThread;
+    }
+
+    /**
+     * Lists the entries of the archive. Only the central directory is retrieved.
+     *
+     * @return the entries in central directory order.
+     * @throws InternalException if the remote is not a valid archive
+     * @throws IOException if unable to retrieve the central directory
+     */
+    public List<ZipEntry> list() throws InternalException, IOException
+    {
+        return readCentralDirectory().values().stream().map( e -> e.zipEntry ).collect( Collectors.toList() );
+    }
+
+    /**
+     * Retrieves and inflates the named entries concurrently.
+     *
+     * @param names the entry names e.g. META-INF/MANIFEST.MF
+     * @return a map of entry name to content, in the order requested.
+     * @throws InternalException if an entry does not exist, is corrupt or uses an unsupported compression method
+     * @throws IOException if unable to retrieve the entries
+     */
+    public Map<String, byte[]> extract( String... names ) throws InternalException, IOException, InterruptedException
+    {
+        Map<String, Entry> directory = readCentralDirectory();
+        Map<String, Future<byte[]>> pending = new LinkedHashMap<>();
+        Map<String, byte[]> result = new LinkedHashMap<>();
+
+        for ( String name : names )
+        {
+            if ( !directory.containsKey( name ) )
+            {
+                throw new InternalException( "No entry " + name + " in " + remote );
+            }
+        }
+
+        ExecutorService service = Executors.newFixedThreadPool( Math.max( 1, Math.min( maxThread, names.length ) ) );
+        try
+        {
+            for ( String name : names )
+            {
+                pending.put( name, service.submit( () -> read( directory.get( name ) ) ) );
+            }
+            for ( Map.Entry<String, Future<byte[]>> entry : pending.entrySet() )
+            {
+                result.put( entry.getKey(), entry.getValue().get() );
+            }
+        }
+        catch ( ExecutionException e )
+        {
+            if ( e.getCause() instanceof IOException )
+            {
+                throw (IOException) e.getCause();
+            }
+            if ( e.getCause() instanceof InternalException )
+            {
+                throw (InternalException) e.getCause();
+            }
+            throw new InternalException( "Unable to extract from " + remote, e );
+        }
+        finally
+        {
+            service.shutdownNow();
+        }
+        return result;
+    }
+
+    /**
+     * Retrieves and inflates the named entries concurrently, writing each to its path beneath the directory.
+     *
+     * @param directory the directory to extract into.
+     * @param names the entry names e.g. META-INF/MANIFEST.MF
+     * @throws InternalException if an entry does not exist, is corrupt or would be written outside the directory
+     * @throws IOException if unable to retrieve or write the entries
+     */
+    public void extract( File directory, String... names ) throws InternalException, IOException, InterruptedException
+    {
+        String root = directory.getCanonicalPath() + File.separator;
+
+        for ( Map.Entry<String, byte[]> entry : extract( names ).entrySet() )
+        {
+            File target = new File( directory, entry.getKey() );
+
+            if ( !target.getCanonicalPath().startsWith( root ) )
+            {
+                throw new InternalException( "Entry " + entry.getKey() + " is outside of " + directory );
+            }
+            if ( entry.getKey().endsWith( "/" ) )
+            {
+                Files.createDirectories( target.toPath() );
+                continue;
+            }
+            Files.createDirectories( target.getParentFile().toPath() );
+            Files.write( target.toPath(), entry.getValue() );
+
+            logger.info( "Extracted {} to {} ( {} bytes )", entry.getKey(), target, entry.getValue().length );
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        logger.info( "Completed reading {} ( {} bytes ) of {}", ByteUtils.humanReadableByteCount( byteCount.get() ),
+                     byteCount.get(), remote );
+        remoteClient.close();
+    }
+
+    private synchronized Map<String, Entry> readCentralDirectory() throws InternalException, IOException
+    {
+        if ( entries != null )
+        {
+            return entries;
+        }
+
+        // The end of central directory record is followed by a comment of up to 64KB.
+        long tailStart = Math.max( 0, remoteSize - ( EOCD_SIZE + 0xFFFF ) );
+        ByteBuffer tail = fetch( tailStart, remoteSize );
+        int eocd = -1;
+
+        for ( int i = tail.limit() - EOCD_SIZE; i >= 0; i-- )
+        {
+            if ( tail.getInt( i ) == EOCD_SIGNATURE )
+            {
+                eocd = i;
+                break;
+            }
+        }
+        if ( eocd < 0 )
+        {
+            throw new InternalException( "Remote (" + remote + ") is not a ZIP archive" );
+        }
+
+        long count = Short.toUnsignedLong( tail.getShort( eocd + 10 ) );
+        long cdSize = Integer.toUnsignedLong( tail.getInt( eocd + 12 ) );
+        long cdOffset = Integer.toUnsignedLong( tail.getInt( eocd + 16 ) );
+
+        if ( eocd >= ZIP64_LOCATOR_SIZE && tail.getInt( eocd - ZIP64_LOCATOR_SIZE ) == ZIP64_LOCATOR_SIGNATURE )
+        {
+            long zip64Offset = tail.getLong( eocd - ZIP64_LOCATOR_SIZE + 8 );
+            ByteBuffer zip64 = fetch( zip64Offset, zip64Offset + ZIP64_EOCD_SIZE );
+
+            if ( zip64.getInt( 0 ) != ZIP64_EOCD_SIGNATURE )
+            {
+                throw new InternalException( "Remote (" + remote + ") has a corrupt ZIP64 end of central directory" );
+            }
+            count = zip64.getLong( 32 );
+            cdSize = zip64.getLong( 40 );
+            cdOffset = zip64.getLong( 48 );
+        }
+
+        logger.debug( "Central directory of {} has {} entries at {} ({} bytes)", remote, count, cdOffset, cdSize );
+
+        // The central directory is held in a single buffer, so must fit within both the archive and 2GB.
+        if ( cdOffset < 0 || cdSize < 0 || cdSize > Integer.MAX_VALUE || cdOffset > remoteSize - cdSize )
+        {
+            throw new InternalException( "Remote (" + remote + ") has a central directory of " + cdSize
+                                                         + " bytes at " + cdOffset + " which cannot be read" );
+        }
+
+        ByteBuffer cd = fetch( cdOffset, cdOffset + cdSize );
+        List<Entry> parsed = new ArrayList<>();
+        int position = 0;
+
+        for ( long i = 0; i < count; i++ )
+        {
+            // Both the fixed record and its variable length fields must lie within the central directory.
+            if ( position + 46 > cd.limit() || cd.getInt( position ) != CENTRAL_SIGNATURE )
+            {
+                throw new InternalException( "Remote (" + remote + ") has a corrupt central directory" );
+            }
+            int nameLength = Short.toUnsignedInt( cd.getShort( position + 28 ) );
+            int extraLength = Short.toUnsignedInt( cd.getShort( position + 30 ) );
+            int commentLength = Short.toUnsignedInt( cd.getShort( position + 32 ) );
+
+            if ( position + 46 + nameLength + extraLength + commentLength > cd.limit() )
+            {
+                throw new InternalException( "Remote (" + remote + ") has a corrupt central directory" );
+            }
+
+            byte[] name = new byte[nameLength];
+            ( (ByteBuffer) ( (Buffer) cd.duplicate() ).position( position + 46 ) ).get( name );
+
+            Entry entry = new Entry( new String( name, ( cd.getShort( position + 8 ) & 0x800 ) != 0 ?
+                            StandardCharsets.UTF_8 :
+                            StandardCharsets.ISO_8859_1 ) );
+            entry.method = Short.toUnsignedInt( cd.getShort( position + 10 ) );
+            entry.crc = Integer.toUnsignedLong( cd.getInt( position + 16 ) );
+            entry.compressedSize = Integer.toUnsignedLong( cd.getInt( position + 20 ) );
+            entry.size = Integer.toUnsignedLong( cd.getInt( position + 24 ) );
+            entry.offset = Integer.toUnsignedLong( cd.getInt( position + 42 ) );
+
+            readZip64Extra( cd, position + 46 + nameLength, extraLength, entry );
+
+            if ( entry.offset < 0 || entry.offset >= cdOffset )
+            {
+                throw new InternalException( "Remote (" + remote + ") has a corrupt central directory" );
+            }
+
+            entry.zipEntry.setMethod( entry.method );
+            entry.zipEntry.setCrc( entry.crc );
+            entry.zipEntry.setCompressedSize( entry.compressedSize );
+            entry.zipEntry.setSize( entry.size );
+            parsed.add( entry );
+
+            position += 46 + nameLength + extraLength + commentLength;
+        }
+
+        // Each entry extends up to the start of the next local header (or the central directory) which
+        // allows the header, data and any data descriptor to be retrieved with a single request.
+        List<Entry> byOffset = new ArrayList<>( parsed );
+        byOffset.sort( ( a, b ) -> Long.compare( a.offset, b.offset ) );
+        for ( int i = 0; i < byOffset.size(); i++ )
+        {
+            byOffset.get( i ).end = i + 1 < byOffset.size() ? byOffset.get( i + 1 ).offset : cdOffset;
+        }
+
+        Map<String, Entry> result = new LinkedHashMap<>();
+        parsed.forEach( e -> result.put( e.zipEntry.getName(), e ) );
+        entries = Collections.unmodifiableMap( result );
+
+        return entries;
+    }
+
+    /**
+     * Sizes and offset are replaced by the ZIP64 extended information field, in order, only where the
+     * central directory value is saturated.
+     */
+    private void readZip64Extra( ByteBuffer cd, int start, int length, Entry entry ) throws InternalException
+    {
+        int position = start;
+
+        while ( position + 4 <= start + length )
+        {
+            int id = Short.toUnsignedInt( cd.getShort( position ) );
+            int size = Short.toUnsignedInt( cd.getShort( position + 2 ) );
+
+            if ( position + 4 + size > start + length )
+            {
+                throw new InternalException( "Remote (" + remote + ") has a corrupt central directory" );
+            }
+            if ( id == ZIP64_EXTRA )
+            {
+                int needed = ( entry.size == ZIP64_MAGIC ? 8 : 0 ) + ( entry.compressedSize == ZIP64_MAGIC ? 8 : 0 )
+                                + ( entry.offset == ZIP64_MAGIC ? 8 : 0 );
+                if ( needed > size )
+                {
+                    throw new InternalException( "Remote (" + remote + ") has a corrupt ZIP64 extended information field" );
+                }
+                int field = position + 4;
+                if ( entry.size == ZIP64_MAGIC )
+                {
+                    entry.size = cd.getLong( field );
+                    field += 8;
+                }
+                if ( entry.compressedSize == ZIP64_MAGIC )
+                {
+                    entry.compressedSize = cd.getLong( field );
+                    field += 8;
+                }
+                if ( entry.offset == ZIP64_MAGIC )
+                {
+                    entry.offset = cd.getLong( field );
+                }
+                return;
+            }
+            position += 4 + size;
+        }
+    }
+
+    private byte[] read( Entry entry ) throws InternalException, IOException
+    {
+        if ( entry.end - entry.offset > Integer.MAX_VALUE || entry.size > Integer.MAX_VALUE )
+        {
+            throw new InternalException( "Entry " + entry.zipEntry.getName() + " is too large to extract into memory" );
+        }
+        ByteBuffer local = fetch( entry.offset, entry.end );
+
+        if ( local.limit() < LOCAL_HEADER_SIZE || local.getInt( 0 ) != LOCAL_SIGNATURE )
+        {
+            throw new InternalException( "Entry " + entry.zipEntry.getName() + " has a corrupt local header" );
+        }
+        // The local extra field may differ from the central directory so always use the local lengths.
+        int dataStart = LOCAL_HEADER_SIZE + Short.toUnsignedInt( local.getShort( 26 ) ) + Short.toUnsignedInt(
+                        local.getShort( 28 ) );
+
+        if ( dataStart + entry.compressedSize > local.limit() )
+        {
+            throw new InternalException( "Entry " + entry.zipEntry.getName() + " extends beyond its local record" );
+        }
+
+        byte[] compressed = new byte[Math.toIntExact( entry.compressedSize )];
+        ( (ByteBuffer) ( (Buffer) local.duplicate() ).position( dataStart ) ).get( compressed );
+
+        byte[] content;
+        switch ( entry.method )
+        {
+            case ZipEntry.STORED:
+                content = compressed;
+                break;
+            case ZipEntry.DEFLATED:
+                content = inflate( entry, compressed );
+                break;
+            default:
+                throw new InternalException(
+                                "Entry " + entry.zipEntry.getName() + " uses unsupported compression method " + entry.method );
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update( content );
+        if ( crc.getValue() != entry.crc )
+        {
+            throw new InternalException( "Entry " + entry.zipEntry.getName() + " failed CRC check" );
+        }
+        logger.debug( "Read entry {} ( {} bytes compressed to {} )", entry.zipEntry.getName(), entry.size,
+                      entry.compressedSize );
+
+        return content;
+    }
+
+    private byte[] inflate( Entry entry, byte[] compressed ) throws InternalException
+    {
+        Inflater inflater = new Inflater( true );
+        try
+        {
+            byte[] content = new byte[Math.toIntExact( entry.size )];
+            inflater.setInput( compressed );
+
+            int inflated = 0;
+            while ( inflated < content.length && !inflater.finished() )
+            {
+                int count = inflater.inflate( content, inflated, content.length - inflated );
+                if ( count == 0 && ( inflater.needsInput() || inflater.needsDictionary() ) )
+                {
+                    break;
+                }
+                inflated += count;
+            }
+            if ( inflated != content.length )
+            {
+                throw new InternalException( "Entry " + entry.zipEntry.getName() + " inflated to " + inflated
+                                                             + " bytes but expected " + content.length );
+            }
+            return content;
+        }
+        catch ( DataFormatException e )
+        {
+            throw new InternalException( "Entry " + entry.zipEntry.getName() + " is corrupt", e );
+        }
+        finally
+        {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Retrieves the range [from, to) into a little-endian buffer.
+     */
+    private ByteBuffer fetch( long from, long to ) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate( Math.toIntExact( to - from ) ).order( ByteOrder.LITTLE_ENDIAN );
+
+        if ( to > from )
+        {
+            PartWriter writer = new PartWriter()
+            {
+                @Override
+                public void write( long position, ByteBuffer src )
+                {
+                    ByteBuffer dst = buffer.duplicate();
+                    ( (Buffer) dst ).position( Math.toIntExact( position - from ) );
+                    dst.put( src );
+                }
+
+                @Override
+                public void read( long position, ByteBuffer dst )
+                {
+                    ByteBuffer src = buffer.duplicate();
+                    ( (Buffer) src ).position( Math.toIntExact( position - from ) );
+                    ( (Buffer) src ).limit( src.position() + dst.remaining() );
+                    dst.put( src );
+                }
+            };
+            try
+            {
+                source.range( writer, byteCount, 0, from, to - 1 ).call();
+            }
+            catch ( IOException | RuntimeException e )
+            {
+                throw e;
+            }
+            catch ( Exception e )
+            {
+                throw new IOException( "Unable to retrieve " + remote, e );
+            }
+        }
+        return buffer;
+    }
+
+    private static class Entry
+    {
+        private final ZipEntry zipEntry;
+
+        private int method;
+
+        private long crc;
+
+        private long compressedSize;
+
+        private long size;
+
+        private long offset;
+
+        private long end;
+
+        private Entry( String name )
+        {
+            zipEntry = new ZipEntry( name );
+        }
+    }
+}
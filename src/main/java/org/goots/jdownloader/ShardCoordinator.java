@@ -0,0 +1,435 @@
+/*
+ * Copyright (C) 2019 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.jdownloader;
+
+import org.goots.jdownloader.utils.ByteUtils;
+import org.goots.jdownloader.utils.InternalException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Coordinates a download shared between several {@link ShardWorker} processes, possibly on other hosts, that
+ * write into the same target on a common filesystem. The coordinator probes the remote, sizes the target and
+ * hands out range leases over a line based TCP protocol:
+ * <pre>
+ * (on connect)              JOB &lt;size&gt; &lt;url&gt; &lt;target&gt;
+ * LEASE                     RANGE &lt;id&gt; &lt;from&gt; &lt;to&gt; | WAIT &lt;millis&gt; | DONE | ABORT &lt;reason&gt;
+ * COMPLETE &lt;id&gt; &lt;length&gt; &lt;sha256&gt;    OK | REJECTED
+ * FAIL &lt;id&gt;                 OK
+ * </pre>
+ * Ranges are inclusive. A worker reports the length and SHA-256 of the content it wrote for a range, computed as it
+ * was written, so the coordinator never reads the target itself; a range whose length does not match is rejected
+ * and leased again. A lease that is not completed within the lease timeout, or whose worker disconnects, is handed
+ * to another worker; as every worker writes identical content a late completion is still accepted, though one whose
+ * digest differs from the accepted one is logged. A lease that fails {@link #FAILURE_LIMIT} times aborts the download. The protocol is
+ * unauthenticated so should only be exposed on a trusted network.
+ */
+public class ShardCoordinator
+                implements Closeable
+{
+    static final long LEASE_SIZE_DEFAULT = 16 * 1024 * 1024;
+
+    static final long LEASE_TIMEOUT_DEFAULT = 60000;
+
+    static final int FAILURE_LIMIT = 5;
+
+    private static final long WAIT_MAXIMUM = 1000;
+
+    private final Logger logger = LoggerFactory.getLogger( ShardCoordinator.class );
+
+    private final URL remote;
+
+    private final File target;
+
+    private final ServerSocket server;
+
+    private final ExecutorService connections = Executors.newCachedThreadPool();
+
+    private final AtomicInteger nextWorker = new AtomicInteger();
+
+    private final List<Lease> leases = new ArrayList<>();
+
+    private final CountDownLatch done = new CountDownLatch( 1 );
+
+    private long leaseSize = LEASE_SIZE_DEFAULT;
+
+    private long leaseTimeout = LEASE_TIMEOUT_DEFAULT;
+
+    private long remoteSize;
+
+    private int completed;
+
+    private volatile String failure;
+
+    /**
+     * Creates a coordinator listening on all interfaces.
+     *
+     * @param remote the remote to download.
+     * @param target the target on storage shared with the workers.
+     * @param port the port to listen on, or 0 for an ephemeral port.
+     * @throws IOException if unable to bind.
+     */
+    public ShardCoordinator( URL remote, File target, int port ) throws IOException
+    {
+        this.remote = remote;
+        this.target = target.getAbsoluteFile();
+        this.server = new ServerSocket( port );
+    }
+
+    /**
+     * Define the size of each range leased to a worker. Default is 16MB.
+     * @param leaseSize the size in bytes.
+     * @return this object
+     */
+    public ShardCoordinator leaseSize( long leaseSize )
+    {
+        this.leaseSize = leaseSize;
+        return this;
+    }
+
+    /**
+     * Define how long a worker may hold a lease before it is handed to another worker. Default is 60 seconds.
+     * @param leaseTimeout the timeout in milliseconds.
+     * @return this object
+     */
+    public ShardCoordinator leaseTimeout( long leaseTimeout )
+    {
+        this.leaseTimeout = leaseTimeout;
+        return this;
+    }
+
+    /**
+     * Probes the remote, sizes the target and starts accepting workers.
+     *
+     * @return this object
+     * @throws InternalException if the remote does not support range requests
+     * @throws IOException if unable to probe the remote or create the target
+     * @throws URISyntaxException if the remote is invalid
+     */
+    public ShardCoordinator start() throws InternalException, IOException, URISyntaxException
+    {
+        remoteSize = new JDownloader( remote ).probe();
+
+        if ( remoteSize < 0 )
+        {
+            throw new InternalException( "Remote (" + remote + ") does not support range requests" );
+        }
+
+        try ( RandomAccessFile file = new RandomAccessFile( target, "rw" ) )
+        {
+            file.setLength( remoteSize );
+        }
+
+        for ( long from = 0; from < remoteSize; from += leaseSize )
+        {
+            leases.add( new Lease( leases.size(), from, Math.min( from + leaseSize, remoteSize ) - 1 ) );
+        }
+        if ( leases.isEmpty() )
+        {
+            done.countDown();
+        }
+
+        connections.submit( this::accept );
+
+        logger.info( "Coordinating {} ( {} ) to {} in {} leases on port {}", remote,
+                     ByteUtils.humanReadableByteCount( remoteSize ), target, leases.size(), getPort() );
+        return this;
+    }
+
+    public int getPort()
+    {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Blocks until every lease has been completed, then forces the target to the device.
+     *
+     * @throws InterruptedException if interrupted while waiting.
+     * @throws InternalException if a lease failed too many times.
+     * @throws IOException if unable to sync the target.
+     */
+    public void awaitCompletion() throws InterruptedException, InternalException, IOException
+    {
+        done.await();
+
+        if ( failure != null )
+        {
+            throw new InternalException( "Unable to download " + remote + ": " + failure );
+        }
+
+        try ( FileChannel channel = FileChannel.open( target.toPath(), StandardOpenOption.WRITE ) )
+        {
+            channel.force( true );
+        }
+
+        logger.info( "Completed writing {} ( {} bytes ) in {} leases", ByteUtils.humanReadableByteCount( remoteSize ),
+                     remoteSize, leases.size() );
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        server.close();
+        connections.shutdownNow();
+    }
+
+    private void accept()
+    {
+        while ( !server.isClosed() )
+        {
+            try
+            {
+                Socket socket = server.accept();
+                connections.submit( () -> serve( socket ) );
+            }
+            catch ( IOException e )
+            {
+                if ( !server.isClosed() )
+                {
+                    logger.error( "Unable to accept worker", e );
+                }
+            }
+        }
+    }
+
+    private void serve( Socket socket )
+    {
+        int worker = nextWorker.incrementAndGet();
+
+        logger.debug( "Worker {} connected from {}", worker, socket.getRemoteSocketAddress() );
+
+        try ( Socket s = socket;
+              BufferedReader in = new BufferedReader( new InputStreamReader( s.getInputStream(), StandardCharsets.UTF_8 ) );
+              PrintWriter out = new PrintWriter( new OutputStreamWriter( s.getOutputStream(), StandardCharsets.UTF_8 ) ) )
+        {
+            reply( out, "JOB " + remoteSize + ' ' + remote + ' ' + target );
+
+            String line;
+            while ( ( line = in.readLine() ) != null )
+            {
+                String[] tokens = line.trim().split( " " );
+
+                switch ( tokens[0] )
+                {
+                    case "LEASE":
+                        reply( out, lease( worker ) );
+                        break;
+                    case "COMPLETE":
+                        if ( tokens.length != 4 )
+                        {
+                            reply( out, "ERROR Expected COMPLETE <id> <length> <sha256>" );
+                            break;
+                        }
+                        reply( out, complete( Integer.parseInt( tokens[1] ), Long.parseLong( tokens[2] ), tokens[3],
+                                              worker ) ? "OK" : "REJECTED" );
+                        break;
+                    case "FAIL":
+                        release( Integer.parseInt( tokens[1] ), worker );
+                        reply( out, "OK" );
+                        break;
+                    default:
+                        reply( out, "ERROR Unknown command " + tokens[0] );
+                }
+            }
+        }
+        catch ( IOException | RuntimeException e )
+        {
+            logger.warn( "Lost worker {}: {}", worker, e.toString() );
+        }
+        finally
+        {
+            releaseAll( worker );
+        }
+        logger.debug( "Worker {} disconnected", worker );
+    }
+
+    private static void reply( PrintWriter out, String reply )
+    {
+        out.print( reply );
+        out.print( '\n' );
+        out.flush();
+    }
+
+    private synchronized String lease( int worker )
+    {
+        if ( failure != null )
+        {
+            return "ABORT " + failure;
+        }
+        if ( completed == leases.size() )
+        {
+            return "DONE";
+        }
+
+        long now = System.currentTimeMillis();
+        long wait = WAIT_MAXIMUM;
+
+        for ( Lease lease : leases )
+        {
+            if ( lease.complete )
+            {
+                continue;
+            }
+            if ( lease.owner != 0 && lease.expiry > now )
+            {
+                wait = Math.min( wait, lease.expiry - now );
+                continue;
+            }
+            if ( lease.owner != 0 )
+            {
+                logger.warn( "Lease {} held by worker {} expired; reassigning to worker {}", lease.id, lease.owner,
+                             worker );
+            }
+            lease.owner = worker;
+            lease.expiry = now + leaseTimeout;
+            return "RANGE " + lease.id + ' ' + lease.from + ' ' + lease.to;
+        }
+        return "WAIT " + wait;
+    }
+
+    /**
+     * Marks the lease complete if the worker wrote its whole range; otherwise the lease is released for another
+     * attempt.
+     *
+     * @return whether the lease was accepted.
+     */
+    private synchronized boolean complete( int id, long length, String digest, int worker )
+    {
+        Lease lease = leases.get( id );
+
+        if ( lease.complete )
+        {
+            if ( !lease.digest.equals( digest ) )
+            {
+                logger.warn( "Worker {} completed lease {} with SHA-256 {} but {} was already accepted", worker, id,
+                             digest, lease.digest );
+            }
+            return true;
+        }
+        if ( length != lease.to - lease.from + 1 )
+        {
+            logger.warn( "Worker {} completed lease {} with {} bytes but it holds {}; reassigning", worker, id, length,
+                         lease.to - lease.from + 1 );
+            release( id, worker );
+            return false;
+        }
+
+        logger.debug( "Worker {} completed lease {} with SHA-256 {}", worker, id, digest );
+
+        lease.complete = true;
+        lease.digest = digest;
+        lease.owner = 0;
+        if ( ++completed == leases.size() )
+        {
+            done.countDown();
+        }
+        return true;
+    }
+
+    /**
+     * @return the digest used to verify leases.
+     */
+    static MessageDigest newDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance( "SHA-256" );
+        }
+        catch ( NoSuchAlgorithmException e )
+        {
+            // Every Java platform is required to support SHA-256.
+            throw new IllegalStateException( e );
+        }
+    }
+
+    private synchronized void release( int id, int worker )
+    {
+        Lease lease = leases.get( id );
+
+        if ( ++lease.failures >= FAILURE_LIMIT )
+        {
+            logger.error( "Worker {} failed lease {}; aborting after {} failures", worker, id, lease.failures );
+            failure = "lease " + id + " failed " + lease.failures + " times";
+            done.countDown();
+        }
+        else if ( lease.owner == worker )
+        {
+            logger.warn( "Worker {} failed lease {}; reassigning", worker, id );
+            lease.owner = 0;
+        }
+    }
+
+    private synchronized void releaseAll( int worker )
+    {
+        for ( Lease lease : leases )
+        {
+            if ( lease.owner == worker && !lease.complete )
+            {
+                lease.owner = 0;
+            }
+        }
+    }
+
+    private static class Lease
+    {
+        private final int id;
+
+        private final long from;
+
+        private final long to;
+
+        private int owner;
+
+        private long expiry;
+
+        private boolean complete;
+
+        private String digest;
+
+        private int failures;
+
+        private Lease( int id, long from, long to )
+        {
+            this.id = id;
+            this.from = from;
+            this.to = to;
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2019 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.jdownloader;
+
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.goots.jdownloader.utils.ByteUtils;
+import org.goots.jdownloader.utils.InternalException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connects to a {@link ShardCoordinator} and downloads the ranges it leases, writing each positionally into the
+ * shared target. Each range is synced before it is reported complete, with the length and digest of the content
+ * written for it. A range that fails is handed back to the coordinator for
+ * another attempt and the worker carries on; it only stops once the coordinator reports the download is done or
+ * aborted, or the connection to it is lost.
+ */
+public class ShardWorker
+                implements Callable<Long>
+{
+    private final Logger logger = LoggerFactory.getLogger( ShardWorker.class );
+
+    private final String host;
+
+    private final int port;
+
+    private String target;
+
+    private int threads = Math.max( Runtime.getRuntime().availableProcessors(), 4 );
+
+    private final AtomicLong byteCount = new AtomicLong();
+
+    private BufferedReader in;
+
+    private PrintWriter out;
+
+    public ShardWorker( String host, int port )
+    {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Define the path of the shared target on this host. Optional, defaults to the coordinator's path.
+     * @param target the target filename.
+     * @return this object.
+     */
+    public ShardWorker target( String target )
+    {
+        this.target = target;
+        return this;
+    }
+
+    /**
+     * Define the number of leases to download concurrently. Defaults to number of processors or 4 whichever is
+     * greater.
+     * @param threads number of threads and connections.
+     * @return this object
+     */
+    public ShardWorker threads( int threads )
+    {
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * Downloads leased ranges until the coordinator reports the download is done.
+     *
+     * @return the number of bytes this worker wrote.
+     * @throws InternalException if the coordinator aborts the download or does not follow the protocol
+     * @throws IOException if the connection to the coordinator is lost
+     */
+    @Override
+    public Long call() throws InternalException, IOException, URISyntaxException, InterruptedException
+    {
+        try ( Socket socket = new Socket( host, port ) )
+        {
+            in = new BufferedReader( new InputStreamReader( socket.getInputStream(), StandardCharsets.UTF_8 ) );
+            out = new PrintWriter( new OutputStreamWriter( socket.getOutputStream(), StandardCharsets.UTF_8 ) );
+
+            String job = in.readLine();
+            String[] tokens = job == null ? new String[0] : job.split( " ", 4 );
+
+            if ( tokens.length != 4 || !"JOB".equals( tokens[0] ) )
+            {
+                throw new InternalException( "Unexpected greeting from coordinator " + host + ':' + port + " : " + job );
+            }
+
+            URI remote = new URI( tokens[2] );
+            String path = target == null ? tokens[3] : target;
+
+            logger.info( "Working on {} ( {} ) into {} for coordinator {}:{}", remote,
+                         ByteUtils.humanReadableByteCount( Long.parseLong( tokens[1] ) ), path, host, port );
+
+            PoolingHttpClientConnectionManager cm = new PoolingHttpClientConnectionManager();
+            cm.setDefaultMaxPerRoute( threads );
+            cm.setMaxTotal( threads );
+
+            ExecutorService service = Executors.newFixedThreadPool( threads );
+            List<Future<Void>> results = new ArrayList<>( threads );
+
+            // The coordinator creates and sizes the target, so it must already exist.
+            try ( FileChannel channel = FileChannel.open( Paths.get( path ), StandardOpenOption.WRITE );
+                  DurablePartWriter writer = new DurablePartWriter( channel, Paths.get( path ), SyncPolicy.PART, 0,
+                                                                    DurablePartWriter.COALESCE_DEFAULT );
+                  CloseableHttpClient pooledClient = HttpClients.custom().setConnectionManager( cm ).build() )
+            {
+                for ( int i = 0; i < threads; i++ )
+                {
+                    results.add( service.submit( () -> work( pooledClient, remote, writer ) ) );
+                }
+                for ( Future<Void> result : results )
+                {
+                    result.get();
+                }
+            }
+            catch ( ExecutionException e )
+            {
+                if ( e.getCause() instanceof IOException )
+                {
+                    throw (IOException) e.getCause();
+                }
+                throw new InternalException( "Unable to download leases of " + remote, e );
+            }
+            finally
+            {
+                service.shutdownNow();
+            }
+        }
+
+        logger.info( "Completed writing {} ( {} bytes )", ByteUtils.humanReadableByteCount( byteCount.get() ),
+                     byteCount.get() );
+        return byteCount.get();
+    }
+
+    private Void work( CloseableHttpClient pooledClient, URI remote, PartWriter writer )
+                    throws IOException, InternalException, InterruptedException
+    {
+        while ( true )
+        {
+            String reply = request( "LEASE" );
+            String[] tokens = reply.split( " " );
+
+            switch ( tokens[0] )
+            {
+                case "DONE":
+                    return null;
+                case "ABORT":
+                    throw new InternalException( "Coordinator " + host + ':' + port + " aborted: " + reply.substring( 6 ) );
+                case "WAIT":
+                    Thread.sleep( Long.parseLong( tokens[1] ) );
+                    break;
+                case "RANGE":
+                    int id = Integer.parseInt( tokens[1] );
+                    long from = Long.parseLong( tokens[2] );
+                    long to = Long.parseLong( tokens[3] );
+                    HashingPartWriter hashing = new HashingPartWriter( writer, ShardCoordinator.newDigest() );
+                    try
+                    {
+                        new PartExtractor( hashing, new AtomicLong(), pooledClient, remote, id, from, to ).call();
+                        writer.complete( from, to + 1 );
+                    }
+                    catch ( IOException e )
+                    {
+                        logger.warn( "Lease {} failed; returning it to the coordinator", id, e );
+                        request( "FAIL " + id );
+                        break;
+                    }
+                    String result = request( "COMPLETE " + id + ' ' + hashing.getLength() + ' '
+                                                     + ByteUtils.toHex( hashing.digest() ) );
+                    if ( "OK".equals( result ) )
+                    {
+                        byteCount.addAndGet( to - from + 1 );
+                    }
+                    else
+                    {
+                        logger.warn( "Coordinator did not accept lease {}: {}", id, result );
+                    }
+                    break;
+                default:
+                    throw new InternalException( "Unexpected reply from coordinator: " + reply );
+            }
+        }
+    }
+
+    private synchronized String request( String command ) throws IOException
+    {
+        out.print( command );
+        out.print( '\n' );
+        out.flush();
+
+        String reply = in.readLine();
+        if ( reply == null )
+        {
+            throw new IOException( "Lost connection to coordinator " + host + ':' + port );
+        }
+        return reply;
+    }
+}
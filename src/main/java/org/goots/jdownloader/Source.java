@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2019 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.jdownloader;
+
+import org.goots.jdownloader.utils.InternalException;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Where the content of a download is read from. Ranges of a source may be retrieved concurrently by the part
+ * scheduler.
+ */
+interface Source
+{
+    /**
+     * Determines whether the content may be retrieved in ranges.
+     *
+     * @return the size of the content, or -1 if the source does not support ranges.
+     * @throws InternalException if the source does not exist.
+     * @throws IOException if unable to access the source.
+     */
+    long probe() throws IOException, InternalException;
+
+    /**
+     * Creates a task that retrieves a range into the writer at the same position and completes it.
+     *
+     * @param writer the destination.
+     * @param byteCount the running total of bytes retrieved by all ranges.
+     * @param partIndex the index of the part, for logging and tracing.
+     * @param from the offset of the first byte.
+     * @param to the offset of the last byte (inclusive); it may lie beyond the end of the content.
+     * @return the task.
+     */
+    Callable<Void> range( PartWriter writer, AtomicLong byteCount, int partIndex, long from, long to );
+
+    /**
+     * Retrieves the whole content in a single stream into the writer from position 0. The caller completes the
+     * region.
+     *
+     * @param writer the destination.
+     * @return the number of bytes retrieved.
+     * @throws InternalException if the source does not exist.
+     * @throws IOException if unable to retrieve the content.
+     */
+    long transfer( PartWriter writer ) throws IOException, InternalException;
+
+    /**
+     * Opens the whole content as a single stream, for consumers that must see its length before writing it or
+     * that read it as a stream.
+     *
+     * @return the content, which the caller closes.
+     * @throws InternalException if the source does not exist.
+     * @throws IOException if unable to access the source.
+     */
+    Content open() throws IOException, InternalException;
+
+    /**
+     * The whole content of a source. Closing it releases the underlying resource without reading any remainder.
+     */
+    class Content
+                    extends FilterInputStream
+    {
+        private final long length;
+
+        private final Closeable resource;
+
+        Content( InputStream in, long length, Closeable resource )
+        {
+            super( in );
+            this.length = length;
+            this.resource = resource;
+        }
+
+        /**
+         * @return the length of the content, or -1 if unknown.
+         */
+        long getLength()
+        {
+            return length;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            resource.close();
+        }
+    }
+}
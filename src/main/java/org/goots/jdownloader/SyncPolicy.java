@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2019 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.jdownloader;
+
+/**
+ * When the content written to the target file is forced to the storage device.
+ */
+public enum SyncPolicy
+{
+    /**
+     * Never; the operating system writes the content back in its own time.
+     */
+    NONE,
+
+    /**
+     * After each part is completely written, so a completed part survives a crash.
+     */
+    PART,
+
+    /**
+     * Once, after the whole download has been written.
+     */
+    END,
+
+    /**
+     * At a fixed interval while downloading and once more at the end, bounding the amount of unsynced content.
+     */
+    PERIODIC
+}
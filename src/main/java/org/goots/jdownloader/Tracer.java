@@ -0,0 +1,378 @@
+/*
+ * Copyright (C) 2019 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.jdownloader;
+
+import org.apache.http.HttpHost;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.conn.SystemDefaultDnsResolver;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.ssl.SSLContexts;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records a per-part timeline of a download (DNS, connect, TLS, time to first byte, byte count samples, time spent
+ * writing and retries) so that slow downloads may be diagnosed. Byte count and write time samples, which are taken
+ * at most every {@link #SAMPLE_INTERVAL} per part, are stored in a preallocated ring buffer so that recording costs a
+ * handful of array stores; if more samples are recorded than the capacity then the oldest are overwritten. The far
+ * fewer phase events (connection setup, requests, part ends, retries and errors) are kept separately and never
+ * dropped. Once the download completes the timeline is written either as JSON lines (a {@code .jsonl} file) or
+ * otherwise in the Chrome trace event format, which may be loaded into chrome://tracing or Perfetto. Part 0 is the
+ * initial probe or a single stream download.
+ */
+class Tracer
+{
+    static final int CAPACITY_DEFAULT = 1 << 16;
+
+    static final long SAMPLE_INTERVAL = TimeUnit.MILLISECONDS.toNanos( 10 );
+
+    enum Event
+    {
+        PROBE_START, PROBE_END, DNS_START, DNS_END, CONNECT_START, CONNECT_END, TLS_START, TLS_END, REQUEST,
+        RESPONSE, BYTES, WRITE, PART_END, RETRY, ERROR
+    }
+
+    private static final Event[] EVENTS = Event.values();
+
+    // The part being processed by the current thread, so that connection events may be attributed to it.
+    private static final ThreadLocal<Integer> PART = ThreadLocal.withInitial( () -> 0 );
+
+    private final long origin = System.nanoTime();
+
+    private final AtomicLong cursor = new AtomicLong();
+
+    private final int mask;
+
+    private final long[] times;
+
+    private final long[] values;
+
+    private final int[] parts;
+
+    private final byte[] events;
+
+    private final List<Entry> phases = new ArrayList<>();
+
+    private final File file;
+
+    Tracer( File file )
+    {
+        this( file, CAPACITY_DEFAULT );
+    }
+
+    /**
+     * @param capacity the number of samples to retain, rounded up to a power of two.
+     */
+    Tracer( File file, int capacity )
+    {
+        int size = Integer.highestOneBit( Math.max( 2, capacity - 1 ) ) << 1;
+
+        this.file = file;
+        this.mask = size - 1;
+        this.times = new long[size];
+        this.values = new long[size];
+        this.parts = new int[size];
+        this.events = new byte[size];
+    }
+
+    File getFile()
+    {
+        return file;
+    }
+
+    static void setPart( int part )
+    {
+        PART.set( part );
+    }
+
+    /**
+     * Called once the current thread has finished a part, so that a pooled thread does not attribute later events
+     * to it.
+     */
+    static void clearPart()
+    {
+        PART.remove();
+    }
+
+    void record( Event event, long value )
+    {
+        record( event, PART.get(), value );
+    }
+
+    void record( Event event, int part, long value )
+    {
+        record( event, part, value, null );
+    }
+
+    /**
+     * @param detail a description written with phase events, such as the mirror and cause of a retry, or null.
+     */
+    void record( Event event, int part, long value, String detail )
+    {
+        long time = System.nanoTime() - origin;
+
+        if ( event == Event.BYTES || event == Event.WRITE )
+        {
+            int index = (int) ( cursor.getAndIncrement() & mask );
+
+            times[index] = time;
+            values[index] = value;
+            parts[index] = part;
+            events[index] = (byte) event.ordinal();
+        }
+        else
+        {
+            synchronized ( phases )
+            {
+                phases.add( new Entry( time, part, event, value, detail ) );
+            }
+        }
+    }
+
+    /**
+     * Writes the retained events in time order. This should only be called once recording has finished.
+     *
+     * @throws IOException if unable to write.
+     */
+    void write() throws IOException
+    {
+        long count = cursor.get();
+        long first = Math.max( 0, count - times.length );
+        boolean chrome = !file.getName().endsWith( ".jsonl" );
+        List<Entry> entries;
+
+        synchronized ( phases )
+        {
+            entries = new ArrayList<>( phases );
+        }
+        for ( long i = first; i < count; i++ )
+        {
+            int index = (int) ( i & mask );
+            entries.add( new Entry( times[index], parts[index], EVENTS[events[index]], values[index], null ) );
+        }
+        entries.sort( Comparator.comparingLong( e -> e.time ) );
+
+        try ( Writer out = Files.newBufferedWriter( file.toPath(), StandardCharsets.UTF_8 ) )
+        {
+            if ( chrome )
+            {
+                out.write( "{\"displayTimeUnit\":\"ms\",\"otherData\":{\"dropped\":" + first + "},\"traceEvents\":[\n" );
+            }
+            for ( int i = 0; i < entries.size(); i++ )
+            {
+                Entry entry = entries.get( i );
+
+                if ( chrome )
+                {
+                    writeChrome( out, entry, i == entries.size() - 1 );
+                }
+                else
+                {
+                    out.write( "{\"ts\":" + entry.time + ",\"part\":" + entry.part + ",\"event\":\""
+                                               + entry.event.name().toLowerCase() + "\",\"value\":" + entry.value
+                                               + ( entry.detail == null ? "" : ",\"detail\":\"" + DownloadServer.escape( entry.detail ) + '"' )
+                                               + "}\n" );
+                }
+            }
+            if ( chrome )
+            {
+                out.write( "]}\n" );
+            }
+        }
+    }
+
+    private static void writeChrome( Writer out, Entry entry, boolean last ) throws IOException
+    {
+        Event event = entry.event;
+        int part = entry.part;
+        long time = entry.time;
+        long value = entry.value;
+        String common = "\"pid\":1,\"tid\":" + part + ",\"ts\":" + String.format( Locale.ROOT, "%.3f", time / 1000.0 );
+        String line;
+
+        switch ( event )
+        {
+            case PROBE_START:
+                line = "{\"name\":\"probe\",\"ph\":\"B\"," + common + '}';
+                break;
+            case DNS_START:
+                line = "{\"name\":\"dns\",\"ph\":\"B\"," + common + '}';
+                break;
+            case CONNECT_START:
+                line = "{\"name\":\"connect\",\"ph\":\"B\"," + common + '}';
+                break;
+            case TLS_START:
+                line = "{\"name\":\"tls\",\"ph\":\"B\"," + common + '}';
+                break;
+            case REQUEST:
+                line = "{\"name\":\"request\",\"ph\":\"B\"," + common + '}';
+                break;
+            case PROBE_END:
+            case DNS_END:
+            case CONNECT_END:
+            case TLS_END:
+            case PART_END:
+                line = "{\"ph\":\"E\"," + common + '}';
+                break;
+            case RESPONSE:
+                // The end of the request is the time to first byte; the transfer follows until the part ends.
+                line = "{\"ph\":\"E\"," + common + "},\n{\"name\":\"transfer\",\"ph\":\"B\"," + common + '}';
+                break;
+            case BYTES:
+                line = "{\"name\":\"part " + part + " bytes\",\"ph\":\"C\"," + common + ",\"args\":{\"bytes\":" + value + "}}";
+                break;
+            case WRITE:
+                line = "{\"name\":\"part " + part + " write ms\",\"ph\":\"C\"," + common + ",\"args\":{\"ms\":"
+                                + TimeUnit.NANOSECONDS.toMillis( value ) + "}}";
+                break;
+            default:
+                line = "{\"name\":\"" + event.name().toLowerCase() + "\",\"ph\":\"i\",\"s\":\"t\"," + common
+                                + ",\"args\":{\"value\":" + value + ( entry.detail == null ? "" :
+                                ",\"detail\":\"" + DownloadServer.escape( entry.detail ) + '"' ) + "}}";
+                break;
+        }
+        out.write( line );
+        out.write( last ? "\n" : ",\n" );
+    }
+
+    private static final class Entry
+    {
+        private final long time;
+
+        private final int part;
+
+        private final Event event;
+
+        private final long value;
+
+        private final String detail;
+
+        private Entry( long time, int part, Event event, long value, String detail )
+        {
+            this.time = time;
+            this.part = part;
+            this.event = event;
+            this.value = value;
+            this.detail = detail;
+        }
+    }
+
+    DnsResolver dnsResolver()
+    {
+        return host -> {
+            record( Event.DNS_START, 0 );
+            try
+            {
+                return SystemDefaultDnsResolver.INSTANCE.resolve( host );
+            }
+            finally
+            {
+                record( Event.DNS_END, 0 );
+            }
+        };
+    }
+
+    Registry<ConnectionSocketFactory> socketFactories()
+    {
+        return RegistryBuilder.<ConnectionSocketFactory>create()
+                              .register( "http", new TracingSocketFactory() )
+                              .register( "https", new TracingSSLSocketFactory() )
+                              .build();
+    }
+
+    private class TracingSocketFactory
+                    implements ConnectionSocketFactory
+    {
+        private final ConnectionSocketFactory delegate = PlainConnectionSocketFactory.getSocketFactory();
+
+        @Override
+        public Socket createSocket( HttpContext context ) throws IOException
+        {
+            return delegate.createSocket( context );
+        }
+
+        @Override
+        public Socket connectSocket( int connectTimeout, Socket sock, HttpHost host, InetSocketAddress remoteAddress,
+                                     InetSocketAddress localAddress, HttpContext context ) throws IOException
+        {
+            record( Event.CONNECT_START, 0 );
+            try
+            {
+                return delegate.connectSocket( connectTimeout, sock, host, remoteAddress, localAddress, context );
+            }
+            finally
+            {
+                record( Event.CONNECT_END, 0 );
+            }
+        }
+    }
+
+    private class TracingSSLSocketFactory
+                    extends SSLConnectionSocketFactory
+    {
+        private TracingSSLSocketFactory()
+        {
+            super( SSLContexts.createDefault(), getDefaultHostnameVerifier() );
+        }
+
+        @Override
+        public Socket connectSocket( int connectTimeout, Socket socket, HttpHost host, InetSocketAddress remoteAddress,
+                                     InetSocketAddress localAddress, HttpContext context ) throws IOException
+        {
+            record( Event.CONNECT_START, 0 );
+            try
+            {
+                return super.connectSocket( connectTimeout, socket, host, remoteAddress, localAddress, context );
+            }
+            finally
+            {
+                record( Event.CONNECT_END, 0 );
+            }
+        }
+
+        @Override
+        public Socket createLayeredSocket( Socket socket, String target, int port, HttpContext context )
+                        throws IOException
+        {
+            record( Event.TLS_START, 0 );
+            try
+            {
+                return super.createLayeredSocket( socket, target, port, context );
+            }
+            finally
+            {
+                record( Event.TLS_END, 0 );
+            }
+        }
+    }
+}
@@ -30,4 +30,15 @@ public class ByteUtils
         String pre = ( "kMGTPE" ).substring( exp - 1, exp );
         return String.format( "%.1f %sB", bytes / Math.pow( unit, exp ), pre );
     }
+
+    public static String toHex( byte[] bytes )
+    {
+        StringBuilder result = new StringBuilder( bytes.length * 2 );
+
+        for ( byte b : bytes )
+        {
+            result.append( String.format( "%02x", b ) );
+        }
+        return result.toString();
+    }
 }
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2019 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.jdownloader.utils;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.encoder.PatternLayoutEncoder;
+import ch.qos.logback.classic.spi.Configurator;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.ConsoleAppender;
+import ch.qos.logback.core.spi.ContextAwareBase;
+import org.slf4j.Logger;
+
+/**
+ * Configures logback programmatically rather than parsing a logback.xml, which is a significant part of
+ * command line startup. It is located via the service loader and is only used if no configuration file
+ * (e.g. logback-test.xml or -Dlogback.configurationFile) is present.
+ */
+public class LogbackConfigurator
+                extends ContextAwareBase
+                implements Configurator
+{
+    @Override
+    public void configure( LoggerContext loggerContext )
+    {
+        PatternLayoutEncoder encoder = new PatternLayoutEncoder();
+        encoder.setContext( loggerContext );
+        encoder.setPattern( "%level %logger{36}- %msg%n" );
+        encoder.start();
+
+        ConsoleAppender<ILoggingEvent> appender = new ConsoleAppender<>();
+        appender.setContext( loggerContext );
+        appender.setName( "STDOUT" );
+        appender.setEncoder( encoder );
+        appender.start();
+
+        ch.qos.logback.classic.Logger root = loggerContext.getLogger( Logger.ROOT_LOGGER_NAME );
+        root.setLevel( Level.INFO );
+        root.addAppender( appender );
+
+        loggerContext.getLogger( "org.apache.http" ).setLevel( Level.WARN );
+    }
+}
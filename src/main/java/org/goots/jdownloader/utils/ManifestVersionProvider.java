@@ -15,7 +15,6 @@
  */
 package org.goots.jdownloader.utils;
 
-import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import picocli.CommandLine;
 
@@ -27,9 +26,6 @@ import java.util.jar.Manifest;
 public class ManifestVersionProvider
                 implements CommandLine.IVersionProvider
 {
-    private final Logger logger = LoggerFactory.getLogger( getClass() );
-
-
    /**
      * Returns version information for a command.
      * @return version information (each string in the array is displayed on a separate line)
@@ -79,7 +75,8 @@ public class ManifestVersionProvider
         }
         catch ( IOException e )
         {
-            logger.warn( "Error getting SCM revision: {}", e.getMessage() );
+            // Picocli creates the provider for every invocation so the logger is only obtained when needed.
+            LoggerFactory.getLogger( getClass() ).warn( "Error getting SCM revision: {}", e.getMessage() );
         }
         return scmRevision;
     }
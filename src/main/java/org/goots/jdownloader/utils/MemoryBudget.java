@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2019 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.jdownloader.utils;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+public class MemoryBudget
+{
+    private static final String MAX_DIRECT_MEMORY = "-XX:MaxDirectMemorySize=";
+
+    /**
+     * Returns the limit on off-heap memory for direct buffers. If -XX:MaxDirectMemorySize has not been
+     * set, or is set to 0, then the JVM defaults it to the maximum heap size.
+     *
+     * @return the maximum direct memory in bytes.
+     */
+    public static long maxDirectMemory()
+    {
+        return maxDirectMemory( ManagementFactory.getRuntimeMXBean().getInputArguments(),
+                                Runtime.getRuntime().maxMemory() );
+    }
+
+    /**
+     * @param arguments the JVM arguments, of which the last -XX:MaxDirectMemorySize takes effect.
+     * @param maxHeap the maximum heap size, which is the default.
+     * @return the maximum direct memory in bytes.
+     */
+    static long maxDirectMemory( List<String> arguments, long maxHeap )
+    {
+        long result = 0;
+
+        for ( String argument : arguments )
+        {
+            if ( argument.startsWith( MAX_DIRECT_MEMORY ) )
+            {
+                result = parseSize( argument.substring( MAX_DIRECT_MEMORY.length() ) );
+            }
+        }
+        return result > 0 ? result : maxHeap;
+    }
+
+    /**
+     * @return the number of bytes currently allocated to direct buffers.
+     */
+    public static long usedDirectMemory()
+    {
+        for ( BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans( BufferPoolMXBean.class ) )
+        {
+            if ( "direct".equals( pool.getName() ) )
+            {
+                return pool.getMemoryUsed();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return the number of bytes that may still be allocated to direct buffers.
+     */
+    public static long availableDirectMemory()
+    {
+        return Math.max( 0, maxDirectMemory() - usedDirectMemory() );
+    }
+
+    /**
+     * Parses a JVM style size e.g. 512m or 2G.
+     *
+     * @param size the size string
+     * @return the size in bytes.
+     */
+    static long parseSize( String size )
+    {
+        String value = size.trim().toLowerCase();
+        long multiplier = 1;
+
+        switch ( value.charAt( value.length() - 1 ) )
+        {
+            case 'k':
+                multiplier = 1L << 10;
+                break;
+            case 'm':
+                multiplier = 1L << 20;
+                break;
+            case 'g':
+                multiplier = 1L << 30;
+                break;
+            case 't':
+                multiplier = 1L << 40;
+                break;
+        }
+        if ( multiplier != 1 )
+        {
+            value = value.substring( 0, value.length() - 1 );
+        }
+        return Long.parseLong( value ) * multiplier;
+    }
+}
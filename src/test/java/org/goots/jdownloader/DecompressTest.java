@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2019 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.goots.jdownloader;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.DefaultServlet;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.goots.jdownloader.utils.InternalException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import static junit.framework.TestCase.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DecompressTest
+{
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder(  );
+
+    private Server server;
+
+    private File root;
+
+    private byte[] original;
+
+    @Before
+    public void before() throws Exception
+    {
+        root = folder.newFolder();
+
+        // Compressible but not trivially so.
+        original = new byte[3_000_000];
+        Random random = new Random( 0 );
+        for ( int i = 0; i < original.length; i++ )
+        {
+            original[i] = (byte) ( 'a' + random.nextInt( 8 ) );
+        }
+
+        // Plain gzip made of several members.
+        try ( OutputStream out = new FileOutputStream( new File( root, "members.gz" ) ) )
+        {
+            for ( int i = 0; i < original.length; i += 1_000_000 )
+            {
+                GZIPOutputStream gzip = new GZIPOutputStream( out );
+                gzip.write( original, i, Math.min( 1_000_000, original.length - i ) );
+                gzip.finish();
+            }
+        }
+        writeBlocked( new File( root, "blocked.gz" ) );
+
+        server = new Server();
+        ServerConnector connector = new ServerConnector( server );
+        connector.setPort( 0 );
+        server.addConnector( connector );
+
+        ServletContextHandler context = new ServletContextHandler();
+        context.setResourceBase( root.getAbsolutePath() );
+        context.setContextPath( "/" );
+        context.addServlet( new ServletHolder( "default", DefaultServlet.class ), "/" );
+        server.setHandler( context );
+        server.start();
+    }
+
+    @After
+    public void after() throws Exception
+    {
+        server.stop();
+    }
+
+    @Test
+    public void verifyMembers() throws Exception
+    {
+        File target = folder.newFile();
+
+        new JDownloader( new URL( server.getURI().toURL(), "members.gz" ) ).minimumSplit( 1 ).decompress( true )
+                                                                           .target( target.getAbsolutePath() ).execute();
+
+        assertTrue( Arrays.equals( original, FileUtils.readFileToByteArray( target ) ) );
+    }
+
+    @Test
+    public void verifyBlocked() throws Exception
+    {
+        File target = folder.newFile();
+        File compressed = folder.newFile();
+
+        new JDownloader( new URL( server.getURI().toURL(), "blocked.gz" ) ).minimumSplit( 1 ).decompress( true )
+                                                                           .compressedTarget( compressed.getAbsolutePath() )
+                                                                           .target( target.getAbsolutePath() ).execute();
+
+        assertTrue( Arrays.equals( original, FileUtils.readFileToByteArray( target ) ) );
+        assertTrue( FileUtils.contentEquals( new File( root, "blocked.gz" ), compressed ) );
+    }
+
+    @Test
+    public void verifySpill() throws Exception
+    {
+        File directory = folder.newFolder();
+        File target = new File( directory, "members" );
+
+        // Content beyond the memory budget is spilled beside the target rather than rejected.
+        new JDownloader( new URL( server.getURI().toURL(), "members.gz" ) ).minimumSplit( 1 ).decompress( true )
+                                                                           .memoryBudget( 1024 )
+                                                                           .target( target.getAbsolutePath() ).execute();
+
+        assertTrue( Arrays.equals( original, FileUtils.readFileToByteArray( target ) ) );
+        assertTrue( Arrays.equals( new String[] { "members" }, directory.list() ) );
+    }
+
+    @Test
+    public void verifySingleThread() throws Exception
+    {
+        File target = folder.newFile();
+
+        new JDownloader( new URL( server.getURI().toURL(), "blocked.gz" ) ).minimumSplit( 0 ).decompress( true )
+                                                                           .target( target.getAbsolutePath() ).execute();
+
+        assertTrue( Arrays.equals( original, FileUtils.readFileToByteArray( target ) ) );
+    }
+
+    @Test
+    public void verifyMembersWithoutAvailable() throws Exception
+    {
+        // A source that never reports buffered bytes and returns short reads, as a socket between packets does.
+        InputStream in = new FilterInputStream( new FileInputStream( new File( root, "members.gz" ) ) )
+        {
+            @Override
+            public int available()
+            {
+                return 0;
+            }
+
+            @Override
+            public int read( byte[] b, int off, int len ) throws IOException
+            {
+                return super.read( b, off, Math.min( len, 4096 ) );
+            }
+        };
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        long written;
+        try ( InputStream source = in )
+        {
+            written = new GzipDecompressor( source, out, 1 ).call();
+        }
+
+        assertTrue( written == original.length );
+        assertTrue( Arrays.equals( original, out.toByteArray() ) );
+    }
+
+    @Test( expected = InternalException.class )
+    public void verifyNotCompressed() throws Exception
+    {
+        FileUtils.writeByteArrayToFile( new File( root, "plain.txt" ), original );
+
+        new JDownloader( new URL( server.getURI().toURL(), "plain.txt" ) ).minimumSplit( 1 ).decompress( true )
+                                                                          .target( folder.newFile().getAbsolutePath() ).execute();
+    }
+
+    @Test
+    public void verifyCorruptBlocks() throws Exception
+    {
+        // A BSIZE smaller than the header, and a BC subfield whose length overruns the extra field.
+        byte[][] corrupt = { { 0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 'B', 'C', 2, 0, 5, 0 },
+                             { 0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 'B', 'C', 4, 0, 5, 0 } };
+
+        for ( byte[] content : corrupt )
+        {
+            try
+            {
+                new GzipDecompressor( new ByteArrayInputStream( content ), new ByteArrayOutputStream(), 1 ).call();
+                fail( "Expected corrupt block to be rejected" );
+            }
+            catch ( InternalException e )
+            {
+                assertTrue( e.getMessage(), e.getMessage().contains( "Corrupt BGZF block" ) );
+            }
+        }
+    }
+
+    /**
+     * Writes the content in the blocked gzip (BGZF) format, where each member records its size in a BC subfield.
+     */
+    private void writeBlocked( File file ) throws IOException
+    {
+        try ( OutputStream out = new FileOutputStream( file ) )
+        {
+            for ( int i = 0; i < original.length; i += 60_000 )
+            {
+                int length = Math.min( 60_000, original.length - i );
+                Deflater deflater = new Deflater( Deflater.DEFAULT_COMPRESSION, true );
+                deflater.setInput( original, i, length );
+                deflater.finish();
+
+                ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                while ( !deflater.finished() )
+                {
+                    deflated.write( buffer, 0, deflater.deflate( buffer ) );
+                }
+                deflater.end();
+
+                CRC32 crc = new CRC32();
+                crc.update( original, i, length );
+
+                int blockSize = 18 + deflated.size() + 8;
+                out.write( new byte[] { 0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 'B', 'C', 2, 0,
+                                (byte) ( blockSize - 1 ), (byte) ( ( blockSize - 1 ) >> 8 ) } );
+                deflated.writeTo( out );
+                writeInt( out, (int) crc.getValue() );
+                writeInt( out, length );
+            }
+        }
+    }
+
+    private static void writeInt( OutputStream out, int value ) throws IOException
+    {
+        out.write( new byte[] { (byte) value, (byte) ( value >> 8 ), (byte) ( value >> 16 ), (byte) ( value >> 24 ) } );
+    }
+}
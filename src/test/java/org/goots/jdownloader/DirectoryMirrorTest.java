@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2019 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.goots.jdownloader;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.http.HttpStatus;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.DefaultServlet;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
+
+public class DirectoryMirrorTest
+{
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder(  );
+
+    private Server server;
+
+    private File root;
+
+    private final AtomicInteger notModified = new AtomicInteger();
+
+    @Before
+    public void before() throws Exception
+    {
+        root = folder.newFolder();
+        Random random = new Random( 0 );
+
+        for ( String name : new String[] { "a.txt", "b c.txt", "sub/c.txt", "sub/deeper/d.bin", "other/e.txt", "other/v1..2.txt" } )
+        {
+            byte[] content = new byte[1000 + random.nextInt( 10000 )];
+            random.nextBytes( content );
+            FileUtils.writeByteArrayToFile( new File( root, name ), content );
+        }
+        byte[] large = new byte[3_000_000];
+        random.nextBytes( large );
+        FileUtils.writeByteArrayToFile( new File( root, "sub/large.bin" ), large );
+
+        server = new Server();
+        ServerConnector connector = new ServerConnector( server );
+        connector.setPort( 0 );
+        server.addConnector( connector );
+
+        ServletContextHandler context = new ServletContextHandler();
+        context.setResourceBase( root.getAbsolutePath() );
+        context.setContextPath( "/" );
+        ServletHolder holder = new ServletHolder( "default", DefaultServlet.class );
+        holder.setInitParameter( "dirAllowed", "true" );
+        context.addServlet( holder, "/" );
+        server.setHandler( context );
+        server.setRequestLog( ( request, response ) -> {
+            if ( response.getStatus() == HttpStatus.SC_NOT_MODIFIED )
+            {
+                notModified.incrementAndGet();
+            }
+        } );
+        server.start();
+    }
+
+    @After
+    public void after() throws Exception
+    {
+        server.stop();
+    }
+
+    @Test
+    public void verifyLinks() throws Exception
+    {
+        URI page = new URI( "http://localhost:8080/dir/" );
+
+        assertEquals( Arrays.asList( new URI( "http://localhost:8080/dir/a%20b.txt" ),
+                                     new URI( "http://localhost:8080/dir/sub/" ) ),
+                      DirectoryMirror.links( page, "<link href=\"style.css\"/><a href=\"a%20b.txt\">a b</a> <a href=\"/\">Parent</a> "
+                                      + "<a href='?C=M;O=A'>sort</a> <a href=\"/dir/sub/\">sub</a> "
+                                      + "<a href=\"http://elsewhere/dir/x\">x</a> <a href=\"../up\">up</a>" ) );
+    }
+
+    @Test
+    public void verifyMirror() throws Exception
+    {
+        File mirror = folder.newFolder();
+
+        new DirectoryMirror( server.getURI().toString() ).target( mirror ).connections( 4 ).partCount( 4 )
+                                                       .minimumSplit( 1_000_000 ).mirror();
+
+        for ( File file : FileUtils.listFiles( root, null, true ) )
+        {
+            String path = root.toPath().relativize( file.toPath() ).toString();
+            assertTrue( path, FileUtils.contentEquals( file, new File( mirror, path ) ) );
+        }
+        assertEquals( 7, FileUtils.listFiles( mirror, null, true ).size() );
+
+        // Unchanged files are skipped, even if their local content differs; changed files are fetched again.
+        File unchanged = new File( mirror, "sub/c.txt" );
+        long modified = unchanged.lastModified();
+        byte[] corrupt = new byte[(int) unchanged.length()];
+        FileUtils.writeByteArrayToFile( unchanged, corrupt );
+        unchanged.setLastModified( modified );
+
+        File changed = new File( mirror, "sub/deeper/d.bin" );
+        changed.setLastModified( 0 );
+
+        new DirectoryMirror( server.getURI().toString() ).target( mirror ).connections( 4 ).mirror();
+
+        // Unchanged files are answered with 304, which is logged once the response completes.
+        for ( int i = 0; i < 50 && notModified.get() < 6; i++ )
+        {
+            Thread.sleep( 100 );
+        }
+        assertEquals( 6, notModified.get() );
+        assertTrue( Arrays.equals( corrupt, FileUtils.readFileToByteArray( unchanged ) ) );
+        assertTrue( FileUtils.contentEquals( new File( root, "sub/deeper/d.bin" ), changed ) );
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2019 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.goots.jdownloader;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.DefaultServlet;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
+
+public class DownloadServerTest
+{
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder(  );
+
+    private Server server;
+
+    private DownloadServer daemon;
+
+    private File root;
+
+    private String token;
+
+    @Before
+    public void before() throws Exception
+    {
+        root = folder.newFolder();
+
+        byte[] content = new byte[2_000_000];
+        new Random( 0 ).nextBytes( content );
+        FileUtils.writeByteArrayToFile( new File( root, "large.bin" ), content );
+        FileUtils.writeStringToFile( new File( root, "small.txt" ), "small", StandardCharsets.UTF_8 );
+
+        server = new Server();
+        ServerConnector connector = new ServerConnector( server );
+        connector.setPort( 0 );
+        server.addConnector( connector );
+
+        ServletContextHandler context = new ServletContextHandler();
+        context.setResourceBase( root.getAbsolutePath() );
+        context.setContextPath( "/" );
+        context.addServlet( new ServletHolder( "default", DefaultServlet.class ), "/" );
+        server.setHandler( context );
+        server.start();
+
+        Path tokenFile = folder.getRoot().toPath().resolve( "token" );
+        daemon = new DownloadServer( 0, 2, 8, tokenFile ).start();
+        token = new String( Files.readAllBytes( tokenFile ), StandardCharsets.UTF_8 );
+
+        assertEquals( "rw-------", PosixFilePermissions.toString( Files.getPosixFilePermissions( tokenFile ) ) );
+    }
+
+    @After
+    public void after() throws Exception
+    {
+        daemon.close();
+        server.stop();
+    }
+
+    @Test
+    public void verifySubmit() throws Exception
+    {
+        for ( String name : new String[] { "large.bin", "small.txt" } )
+        {
+            File target = new File( folder.getRoot(), name );
+            String response = post( "/jobs", "{\"url\":\"" + new URL( server.getURI().toURL(), name ) + "\",\"out\":\""
+                            + target.getAbsolutePath() + "\",\"split\":1,\"wait\":true}" );
+
+            assertTrue( response, response.contains( "\"status\":\"COMPLETED\"" ) );
+            assertTrue( FileUtils.contentEquals( new File( root, name ), target ) );
+        }
+    }
+
+    @Test
+    public void verifyDeduplicate() throws Exception
+    {
+        String url = new URL( server.getURI().toURL(), "large.bin" ).toString();
+        String target = new File( folder.getRoot(), "large.bin" ).getAbsolutePath();
+
+        DownloadServer.Job first = daemon.submit( url, target, 4, 1 );
+        DownloadServer.Job second = daemon.submit( url, target, 4, 1 );
+
+        assertEquals( first.getId(), second.getId() );
+        assertTrue( first.await( 30, TimeUnit.SECONDS ) );
+        assertEquals( DownloadServer.Status.COMPLETED, first.getStatus() );
+
+        String response = get( "/jobs/" + first.getId() );
+        assertTrue( response, response.contains( "\"status\":\"COMPLETED\"" ) );
+    }
+
+    @Test
+    public void verifyFailure() throws Exception
+    {
+        String response = post( "/jobs", "{\"url\":\"" + new URL( server.getURI().toURL(), "missing.bin" ) + "\",\"out\":\""
+                        + new File( folder.getRoot(), "missing.bin" ).getAbsolutePath() + "\",\"wait\":true}" );
+
+        assertTrue( response, response.contains( "\"status\":\"FAILED\"" ) );
+    }
+
+    @Test
+    public void verifyRejected() throws Exception
+    {
+        String job = "{\"url\":\"" + new URL( server.getURI().toURL(), "small.txt" ) + "\",\"out\":\""
+                        + new File( folder.getRoot(), "small.txt" ).getAbsolutePath() + "\"}";
+        String local = "localhost:" + daemon.getPort();
+
+        assertTrue( request( "POST", local, null, "Bearer " + token, "application/json", job ).contains( " 200 " ) );
+        assertTrue( request( "POST", local, null, null, "application/json", job ).contains( " 401 " ) );
+        assertTrue( request( "POST", local, null, "Bearer wrong", "application/json", job ).contains( " 401 " ) );
+        assertTrue( request( "GET", "attacker.example:" + daemon.getPort(), null, "Bearer " + token, null, "" ).contains( " 403 " ) );
+        assertTrue( request( "POST", local, "http://attacker.example", "Bearer " + token, "application/json", job ).contains( " 403 " ) );
+        assertTrue( request( "POST", local, null, "Bearer " + token, "application/x-www-form-urlencoded",
+                             "url=http://127.0.0.1/&out=/tmp/x" ).contains( " 415 " ) );
+        assertTrue( request( "POST", local, null, "Bearer " + token, "text/plain", job ).contains( " 415 " ) );
+        assertTrue( request( "POST", local, null, "Bearer " + token, "application/json",
+                             "{\"url\":\"file:///etc/passwd\",\"out\":\"/tmp/passwd\"}" ).contains( " 400 " ) );
+        assertTrue( request( "POST", local, null, "Bearer " + token, "application/json", "{\"url\":" ).contains( " 400 " ) );
+    }
+
+    @Test( expected = IOException.class )
+    public void verifyTokenPermissions() throws Exception
+    {
+        Path tokenFile = folder.newFile().toPath();
+        Files.write( tokenFile, "secret".getBytes( StandardCharsets.UTF_8 ) );
+        Files.setPosixFilePermissions( tokenFile, PosixFilePermissions.fromString( "rw-r--r--" ) );
+
+        new DownloadServer( 0, 1, 1, tokenFile ).close();
+    }
+
+    @Test
+    public void verifyParseJson()
+    {
+        assertEquals( "a\"b\n\u00e9", DownloadServer.parseJson( " { \"x\" : \"a\\\"b\\n\\u00e9\" , \"n\":-1.5e3,\"z\":null } " ).get( "x" ) );
+        assertEquals( "-1.5e3", DownloadServer.parseJson( "{\"n\":-1.5e3}" ).get( "n" ) );
+        assertTrue( DownloadServer.parseJson( "{}" ).isEmpty() );
+    }
+
+    /**
+     * Sends a raw request so that the Host and Origin headers, which HttpURLConnection restricts, can be chosen.
+     *
+     * @return the status line.
+     */
+    private String request( String method, String host, String origin, String authorization, String type, String body )
+                    throws Exception
+    {
+        byte[] content = body.getBytes( StandardCharsets.UTF_8 );
+        StringBuilder request = new StringBuilder( method ).append( " /jobs HTTP/1.1\r\nHost: " ).append( host ).append( "\r\n" );
+
+        if ( origin != null )
+        {
+            request.append( "Origin: " ).append( origin ).append( "\r\n" );
+        }
+        if ( authorization != null )
+        {
+            request.append( "Authorization: " ).append( authorization ).append( "\r\n" );
+        }
+        if ( type != null )
+        {
+            request.append( "Content-Type: " ).append( type ).append( "\r\n" );
+        }
+        request.append( "Content-Length: " ).append( content.length ).append( "\r\nConnection: close\r\n\r\n" );
+
+        try ( Socket socket = new Socket( "127.0.0.1", daemon.getPort() ) )
+        {
+            OutputStream out = socket.getOutputStream();
+            out.write( request.toString().getBytes( StandardCharsets.UTF_8 ) );
+            out.write( content );
+            out.flush();
+
+            InputStream in = socket.getInputStream();
+            String response = IOUtils.toString( in, StandardCharsets.UTF_8 );
+            return response.substring( 0, response.indexOf( '\r' ) );
+        }
+    }
+
+    private String post( String path, String body ) throws Exception
+    {
+        HttpURLConnection connection = (HttpURLConnection) new URL( "http://127.0.0.1:" + daemon.getPort() + path ).openConnection();
+        connection.setRequestMethod( "POST" );
+        connection.setRequestProperty( "Authorization", "Bearer " + token );
+        connection.setRequestProperty( "Content-Type", "application/json" );
+        connection.setDoOutput( true );
+        try ( OutputStream out = connection.getOutputStream() )
+        {
+            out.write( body.getBytes( StandardCharsets.UTF_8 ) );
+        }
+        return read( connection );
+    }
+
+    private String get( String path ) throws Exception
+    {
+        HttpURLConnection connection = (HttpURLConnection) new URL( "http://127.0.0.1:" + daemon.getPort() + path ).openConnection();
+        connection.setRequestProperty( "Authorization", "Bearer " + token );
+        return read( connection );
+    }
+
+    private static String read( HttpURLConnection connection ) throws Exception
+    {
+        return IOUtils.toString( connection.getResponseCode() < 400 ? connection.getInputStream() : connection.getErrorStream(),
+                                 StandardCharsets.UTF_8 );
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2019 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.goots.jdownloader;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static junit.framework.TestCase.assertTrue;
+import static org.junit.Assert.assertEquals;
+
+public class DurabilityTest
+{
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder(  );
+
+    private FaultInjectingServer server;
+
+    private byte[] content;
+
+    @Before
+    public void before() throws Exception
+    {
+        content = new byte[3_000_000];
+        new Random( 0 ).nextBytes( content );
+        server = new FaultInjectingServer( content );
+    }
+
+    @After
+    public void after() throws Exception
+    {
+        server.close();
+    }
+
+    @Test
+    public void verifyPolicies() throws Exception
+    {
+        for ( Preallocation preallocation : Preallocation.values() )
+        {
+            for ( SyncPolicy sync : SyncPolicy.values() )
+            {
+                File target = folder.newFile();
+                // Start from a longer file to check it is truncated.
+                FileUtils.writeByteArrayToFile( target, new byte[content.length * 2] );
+
+                new JDownloader( server.getURL() ).minimumSplit( 1 ).partCount( 4 ).preallocation( preallocation )
+                                                  .sync( sync ).syncInterval( 1 ).target( target.getAbsolutePath() )
+                                                  .execute();
+
+                assertTrue( preallocation + " " + sync, Arrays.equals( content, FileUtils.readFileToByteArray( target ) ) );
+            }
+        }
+    }
+
+    @Test
+    public void verifySingleStream() throws Exception
+    {
+        File target = folder.newFile();
+
+        new JDownloader( server.getURL() ).minimumSplit( 0 ).sync( SyncPolicy.PART ).target( target.getAbsolutePath() )
+                                          .execute();
+
+        assertTrue( Arrays.equals( content, FileUtils.readFileToByteArray( target ) ) );
+    }
+
+    @Test
+    public void verifyCoalescing() throws Exception
+    {
+        File target = folder.newFile();
+        int parts = 8;
+        int range = content.length / parts;
+        ExecutorService service = Executors.newFixedThreadPool( parts );
+
+        try ( FileChannel channel = FileChannel.open( target.toPath(), StandardOpenOption.WRITE, StandardOpenOption.READ );
+              DurablePartWriter writer = new DurablePartWriter( channel, null, SyncPolicy.END, 0, 100_000 ) )
+        {
+            List<Future<Void>> futures = new ArrayList<>();
+            for ( int i = 0; i < parts; i++ )
+            {
+                int from = i * range;
+                int to = i == parts - 1 ? content.length : from + range;
+                futures.add( service.submit( () -> {
+                    // Mostly small contiguous writes, with the occasional one larger than the buffer.
+                    Random random = new Random( from );
+                    for ( int position = from; position < to; )
+                    {
+                        int length = Math.min( to - position, random.nextInt( 10 ) == 0 ? 150_000 : random.nextInt( 20_000 ) + 1 );
+                        writer.write( position, ByteBuffer.wrap( content, position, length ) );
+                        position += length;
+                    }
+                    writer.complete( from, to );
+                    return null;
+                } ) );
+            }
+            for ( Future<Void> future : futures )
+            {
+                future.get();
+            }
+        }
+        finally
+        {
+            service.shutdownNow();
+        }
+
+        assertEquals( content.length, target.length() );
+        assertTrue( Arrays.equals( content, FileUtils.readFileToByteArray( target ) ) );
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2019 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.goots.jdownloader;
+
+import org.eclipse.jetty.io.EndPoint;
+import org.eclipse.jetty.io.SocketChannelEndPoint;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A local server for in-memory content that, unlike the Jetty DefaultServlet, can misbehave in the ways real
+ * servers do: latency, per-connection bandwidth caps, mid-stream connection resets, full content (200) in reply to
+ * a range request, bodies shorter than their Content-Length, rejected HEAD requests and content of unknown length. Counted faults apply to
+ * that many subsequent GET requests and then stop.
+ */
+class FaultInjectingServer
+                implements AutoCloseable
+{
+    private static final Pattern RANGE = Pattern.compile( "bytes=(\\d+)-(\\d*)" );
+
+    private static final int CHUNK = 8192;
+
+    private final Server server;
+
+    private final byte[] content;
+
+    private final AtomicInteger requests = new AtomicInteger();
+
+    private final AtomicInteger resets = new AtomicInteger();
+
+    private final AtomicInteger shortBodies = new AtomicInteger();
+
+    private final AtomicInteger ignoredRanges = new AtomicInteger();
+
+    private volatile long resetAfter;
+
+    private volatile int latency;
+
+    private volatile long bandwidth;
+
+    private volatile boolean rejectHead;
+
+    private volatile boolean unknownLength;
+
+    FaultInjectingServer( byte[] content ) throws Exception
+    {
+        this.content = content;
+
+        server = new Server();
+        ServerConnector connector = new ServerConnector( server );
+        connector.setHost( "127.0.0.1" );
+        connector.setPort( 0 );
+        server.addConnector( connector );
+
+        ServletContextHandler context = new ServletContextHandler();
+        context.setContextPath( "/" );
+        context.addServlet( new ServletHolder( new FaultServlet() ), "/*" );
+        server.setHandler( context );
+        server.start();
+    }
+
+    URL getURL() throws IOException
+    {
+        return new URL( "http://127.0.0.1:" + ( (ServerConnector) server.getConnectors()[0] ).getLocalPort() + "/content.bin" );
+    }
+
+    /**
+     * @return the number of GET requests received.
+     */
+    int getRequests()
+    {
+        return requests.get();
+    }
+
+    FaultInjectingServer latency( int millis )
+    {
+        this.latency = millis;
+        return this;
+    }
+
+    FaultInjectingServer bandwidth( long bytesPerSecond )
+    {
+        this.bandwidth = bytesPerSecond;
+        return this;
+    }
+
+    FaultInjectingServer rejectHead( boolean rejectHead )
+    {
+        this.rejectHead = rejectHead;
+        return this;
+    }
+
+    /**
+     * Sends the content chunked, without a Content-Length or range support.
+     */
+    FaultInjectingServer unknownLength( boolean unknownLength )
+    {
+        this.unknownLength = unknownLength;
+        return this;
+    }
+
+    FaultInjectingServer ignoreRange( int count )
+    {
+        ignoredRanges.set( count );
+        return this;
+    }
+
+    FaultInjectingServer reset( int count, long afterBytes )
+    {
+        resetAfter = afterBytes;
+        resets.set( count );
+        return this;
+    }
+
+    FaultInjectingServer shortBody( int count )
+    {
+        shortBodies.set( count );
+        return this;
+    }
+
+    @Override
+    public void close() throws Exception
+    {
+        server.stop();
+    }
+
+    private static boolean take( AtomicInteger counter )
+    {
+        return counter.getAndUpdate( c -> c > 0 ? c - 1 : 0 ) > 0;
+    }
+
+    private class FaultServlet
+                    extends HttpServlet
+    {
+        @Override
+        protected void doHead( HttpServletRequest request, HttpServletResponse response ) throws IOException
+        {
+            delay();
+            if ( rejectHead )
+            {
+                response.sendError( HttpServletResponse.SC_METHOD_NOT_ALLOWED );
+                return;
+            }
+            if ( unknownLength )
+            {
+                return;
+            }
+            response.setHeader( "Accept-Ranges", "bytes" );
+            response.setContentLengthLong( content.length );
+        }
+
+        @Override
+        protected void doGet( HttpServletRequest request, HttpServletResponse response ) throws IOException
+        {
+            requests.incrementAndGet();
+            delay();
+
+            long from = 0;
+            long to = content.length - 1;
+            String range = request.getHeader( "Range" );
+            Matcher matcher = range == null ? null : RANGE.matcher( range );
+
+            if ( !unknownLength )
+            {
+                response.setHeader( "Accept-Ranges", "bytes" );
+            }
+
+            if ( !unknownLength && matcher != null && matcher.matches() && !take( ignoredRanges ) )
+            {
+                from = Long.parseLong( matcher.group( 1 ) );
+                if ( !matcher.group( 2 ).isEmpty() )
+                {
+                    to = Math.min( to, Long.parseLong( matcher.group( 2 ) ) );
+                }
+                response.setStatus( HttpServletResponse.SC_PARTIAL_CONTENT );
+                response.setHeader( "Content-Range", "bytes " + from + '-' + to + '/' + content.length );
+            }
+
+            long length = to - from + 1;
+            long limit = length;
+            boolean reset = take( resets );
+            boolean truncate = !reset && take( shortBodies );
+
+            if ( reset )
+            {
+                limit = Math.min( length, resetAfter );
+            }
+            else if ( truncate )
+            {
+                limit = length / 2;
+            }
+
+            if ( !unknownLength )
+            {
+                response.setContentLengthLong( length );
+            }
+            OutputStream out = response.getOutputStream();
+            long start = System.nanoTime();
+
+            for ( long sent = 0; sent < limit; )
+            {
+                int count = (int) Math.min( CHUNK, limit - sent );
+                out.write( content, (int) ( from + sent ), count );
+                sent += count;
+                throttle( start, sent );
+            }
+
+            if ( reset || truncate )
+            {
+                out.flush();
+                EndPoint endPoint = Request.getBaseRequest( request ).getHttpChannel().getEndPoint();
+
+                // An abortive close sends a RST rather than a FIN.
+                if ( reset && endPoint instanceof SocketChannelEndPoint )
+                {
+                    ( (SocketChannelEndPoint) endPoint ).getSocket().setSoLinger( true, 0 );
+                }
+                endPoint.close();
+            }
+        }
+
+        private void delay() throws IOException
+        {
+            if ( latency > 0 )
+            {
+                sleep( latency );
+            }
+        }
+
+        private void throttle( long start, long sent ) throws IOException
+        {
+            if ( bandwidth > 0 )
+            {
+                long expected = TimeUnit.SECONDS.toMillis( sent ) / bandwidth;
+                long elapsed = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start );
+
+                if ( expected > elapsed )
+                {
+                    sleep( expected - elapsed );
+                }
+            }
+        }
+
+        private void sleep( long millis ) throws IOException
+        {
+            try
+            {
+                Thread.sleep( millis );
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException( e );
+            }
+        }
+    }
+}
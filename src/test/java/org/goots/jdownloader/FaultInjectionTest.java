@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2019 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.goots.jdownloader;
+
+import org.apache.commons.io.FileUtils;
+import org.goots.jdownloader.utils.InternalException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static junit.framework.TestCase.assertTrue;
+import static org.junit.Assert.assertEquals;
+
+public class FaultInjectionTest
+{
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder(  );
+
+    private FaultInjectingServer server;
+
+    private byte[] content;
+
+    @Before
+    public void before() throws Exception
+    {
+        content = new byte[2_000_000];
+        new Random( 0 ).nextBytes( content );
+        server = new FaultInjectingServer( content );
+    }
+
+    @After
+    public void after() throws Exception
+    {
+        server.close();
+    }
+
+    private File download( int minimumSplit ) throws Exception
+    {
+        File target = folder.newFile();
+        new JDownloader( server.getURL() ).minimumSplit( minimumSplit ).partCount( 4 )
+                                          .target( target.getAbsolutePath() ).execute();
+        return target;
+    }
+
+    @Test
+    public void verifyLatencyAndBandwidth() throws Exception
+    {
+        server.latency( 50 ).bandwidth( 2_000_000 );
+
+        File target = download( 1 );
+
+        assertTrue( Arrays.equals( content, FileUtils.readFileToByteArray( target ) ) );
+        assertEquals( 4, server.getRequests() );
+    }
+
+    @Test( expected = IOException.class )
+    public void verifyIgnoredRange() throws Exception
+    {
+        server.ignoreRange( 1 );
+
+        download( 1 );
+    }
+
+    @Test( expected = IOException.class )
+    public void verifyShortBody() throws Exception
+    {
+        server.shortBody( 1 );
+
+        download( 1 );
+    }
+
+    @Test( expected = IOException.class )
+    public void verifyReset() throws Exception
+    {
+        server.reset( 1, 100_000 );
+
+        download( 1 );
+    }
+
+    @Test( expected = IOException.class )
+    public void verifyShortBodySingleStream() throws Exception
+    {
+        server.shortBody( 1 );
+
+        download( 0 );
+    }
+
+    @Test
+    public void verifyUnknownLengthBuffer() throws Exception
+    {
+        server.unknownLength( true );
+
+        ByteBuffer buffer = new JDownloader( server.getURL() ).toBuffer();
+
+        assertTrue( buffer.isDirect() );
+        assertEquals( ByteBuffer.wrap( content ), buffer );
+        assertEquals( content.length, buffer.capacity() );
+    }
+
+    @Test( expected = IOException.class )
+    public void verifyUnknownLengthBudget() throws Exception
+    {
+        server.unknownLength( true );
+
+        new JDownloader( server.getURL() ).memoryBudget( content.length / 2 ).toBuffers();
+    }
+
+    @Test( expected = InternalException.class )
+    public void verifyRejectedHead() throws Exception
+    {
+        server.rejectHead( true );
+
+        download( 1 );
+    }
+
+    @Test
+    public void verifyRejectedHeadWithoutSplit() throws Exception
+    {
+        server.rejectHead( true );
+
+        File target = download( 0 );
+
+        assertTrue( Arrays.equals( content, FileUtils.readFileToByteArray( target ) ) );
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2019 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.goots.jdownloader;
+
+import org.apache.commons.io.FileUtils;
+import org.goots.jdownloader.utils.InternalException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static junit.framework.TestCase.assertTrue;
+import static org.junit.Assert.assertEquals;
+
+public class FileSourceTest
+{
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder(  );
+
+    private File source;
+
+    private byte[] content;
+
+    @Before
+    public void before() throws Exception
+    {
+        content = new byte[5_000_001];
+        new Random( 0 ).nextBytes( content );
+        source = folder.newFile( "source.bin" );
+        FileUtils.writeByteArrayToFile( source, content );
+    }
+
+    @Test
+    public void verifyParts() throws Exception
+    {
+        File target = folder.newFile();
+
+        new JDownloader( source.toURI().toURL() ).minimumSplit( 1 ).partCount( 7 ).target( target.getAbsolutePath() )
+                                                 .execute();
+
+        assertTrue( Arrays.equals( content, FileUtils.readFileToByteArray( target ) ) );
+    }
+
+    @Test
+    public void verifySingleStream() throws Exception
+    {
+        File target = folder.newFile();
+
+        new JDownloader( source.toURI().toURL() ).minimumSplit( 0 ).target( target.getAbsolutePath() ).execute();
+
+        assertTrue( Arrays.equals( content, FileUtils.readFileToByteArray( target ) ) );
+    }
+
+    @Test
+    public void verifyListener() throws Exception
+    {
+        File target = folder.newFile();
+        AtomicLong prefix = new AtomicLong();
+
+        new JDownloader( source.toURI().toURL() ).minimumSplit( 1 ).partCount( 4 )
+                                                 .listener( new DownloadListener()
+                                                 {
+                                                     @Override
+                                                     public void prefixCompleted( long length )
+                                                     {
+                                                         prefix.set( length );
+                                                     }
+                                                 } )
+                                                 .target( target.getAbsolutePath() ).execute();
+
+        assertEquals( content.length, prefix.get() );
+        assertTrue( Arrays.equals( content, FileUtils.readFileToByteArray( target ) ) );
+    }
+
+    @Test
+    public void verifyBufferedWriter() throws Exception
+    {
+        BufferPartWriter writer = new BufferPartWriter( content.length );
+
+        new FileSource( source.toURI().toURL(), null ).range( writer, new AtomicLong(), 1, 0, content.length ).call();
+
+        byte[] result = new byte[content.length];
+        writer.getBuffers().get( 0 ).get( result );
+        assertTrue( Arrays.equals( content, result ) );
+    }
+
+    @Test
+    public void verifyToBuffer() throws Exception
+    {
+        for ( int minimumSplit : new int[] { 0, 1 } )
+        {
+            ByteBuffer buffer = new JDownloader( source.toURI().toURL() ).minimumSplit( minimumSplit ).toBuffer();
+
+            byte[] result = new byte[content.length];
+            buffer.get( result );
+            assertTrue( Arrays.equals( content, result ) );
+        }
+    }
+
+    @Test
+    public void verifyZip() throws Exception
+    {
+        File archive = folder.newFile( "source.zip" );
+        try ( ZipOutputStream out = new ZipOutputStream( new FileOutputStream( archive ) ) )
+        {
+            out.putNextEntry( new ZipEntry( "source.bin" ) );
+            out.write( content );
+            out.closeEntry();
+        }
+
+        try ( RemoteZip zip = new JDownloader( archive.toURI().toURL() ).zip() )
+        {
+            assertTrue( Arrays.equals( content, zip.extract( "source.bin" ).get( "source.bin" ) ) );
+        }
+    }
+
+    @Test( expected = InternalException.class )
+    public void verifyMissing() throws Exception
+    {
+        new JDownloader( new File( folder.getRoot(), "missing.bin" ).toURI().toURL() ).minimumSplit( 1 )
+                                                 .target( folder.newFile().getAbsolutePath() ).execute();
+    }
+}
@@ -17,6 +17,7 @@
 package org.goots.jdownloader;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.goots.jdownloader.utils.InternalException;
 import org.junit.Rule;
 import org.junit.Test;
@@ -26,7 +27,14 @@ import org.junit.rules.TemporaryFolder;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
-
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static junit.framework.TestCase.assertEquals;
 import static junit.framework.TestCase.assertTrue;
 
 public class JDownloaderTest
@@ -168,6 +176,174 @@ public class JDownloaderTest
         }
     }
 
+    @Test
+    public void verifyContentsBuffer() throws Exception
+    {
+        URL source = new URL("https://repo1.maven.org/maven2/commons-io/commons-io/2.6/commons-io-2.6.jar" );
+
+        byte[] original = IOUtils.toByteArray( source );
+
+        ByteBuffer buffer = new JDownloader( source ).minimumSplit( 1 ).toBuffer();
+
+        assertTrue( buffer.isDirect() );
+        assertEquals( ByteBuffer.wrap( original ), buffer );
+    }
+
+    @Test
+    public void verifyBufferChunks() throws Exception
+    {
+        byte[] original = new byte[1000];
+        new Random( 0 ).nextBytes( original );
+
+        BufferPartWriter writer = new BufferPartWriter( original.length, 300 );
+        // Write out of order and across chunk boundaries.
+        writer.write( 250, ByteBuffer.wrap( original, 250, 750 ) );
+        writer.write( 0, ByteBuffer.wrap( original, 0, 250 ) );
+
+        List<ByteBuffer> buffers = writer.getBuffers();
+        assertEquals( 4, buffers.size() );
+        assertEquals( 100, buffers.get( 3 ).capacity() );
+
+        ByteBuffer result = ByteBuffer.allocate( original.length );
+        buffers.forEach( result::put );
+        assertTrue( Arrays.equals( original, result.array() ) );
+    }
+
+    @Test
+    public void verifyBufferGrowable() throws Exception
+    {
+        byte[] original = new byte[1000];
+        new Random( 0 ).nextBytes( original );
+
+        BufferPartWriter writer = BufferPartWriter.growable( original.length, 300 );
+        for ( int i = 0; i < original.length; i += 64 )
+        {
+            writer.write( i, ByteBuffer.wrap( original, i, Math.min( 64, original.length - i ) ) );
+        }
+
+        List<ByteBuffer> buffers = writer.getBuffers();
+        assertEquals( 4, buffers.size() );
+        assertEquals( 100, buffers.get( 3 ).capacity() );
+
+        ByteBuffer result = ByteBuffer.allocate( original.length );
+        buffers.forEach( result::put );
+        assertTrue( Arrays.equals( original, result.array() ) );
+    }
+
+    @Test(expected = IOException.class)
+    public void verifyBufferGrowableLimit() throws Exception
+    {
+        BufferPartWriter.growable( 100, Integer.MAX_VALUE ).write( 0, ByteBuffer.allocate( 101 ) );
+    }
+
+    @Test(expected = InternalException.class)
+    public void verifyBufferBudget() throws Exception
+    {
+        URL source = new URL("https://repo1.maven.org/maven2/commons-io/commons-io/2.6/commons-io-2.6.jar" );
+
+        new JDownloader( source ).minimumSplit( 1 ).memoryBudget( 1024 ).toBuffer();
+    }
+
+    @Test
+    public void verifyListener() throws Exception
+    {
+        URL source = new URL("https://repo1.maven.org/maven2/commons-io/commons-io/2.6/commons-io-2.6.jar" );
+
+        File original = folder.newFile();
+        FileUtils.copyURLToFile(source, original );
+
+        File target = folder.newFile();
+        AtomicLong prefix = new AtomicLong();
+        AtomicLong regions = new AtomicLong();
+
+        new JDownloader( source ).target( target.getAbsolutePath() ).minimumSplit( 1 ).listener( new DownloadListener()
+        {
+            @Override
+            public void regionCompleted( long from, long to )
+            {
+                regions.addAndGet( to - from );
+            }
+
+            @Override
+            public void prefixCompleted( long length )
+            {
+                assertTrue( length > prefix.getAndSet( length ) );
+            }
+        } ).execute();
+
+        assertTrue ( FileUtils.contentEquals( original, target ) );
+        assertEquals( original.length(), prefix.get() );
+        assertEquals( original.length(), regions.get() );
+    }
+
+    @Test
+    public void verifyPrefixTracking() throws Exception
+    {
+        List<Long> prefixes = new ArrayList<>();
+        ProgressPartWriter writer = new ProgressPartWriter( new BufferPartWriter( 50 ),
+                                                            new DownloadListener()
+                                                            {
+                                                                @Override
+                                                                public void prefixCompleted( long length )
+                                                                {
+                                                                    prefixes.add( length );
+                                                                }
+                                                            } );
+
+        writer.write( 20, ByteBuffer.allocate( 10 ) );
+        writer.write( 40, ByteBuffer.allocate( 10 ) );
+        writer.write( 0, ByteBuffer.allocate( 10 ) );
+        writer.write( 10, ByteBuffer.allocate( 10 ) );
+        writer.write( 30, ByteBuffer.allocate( 10 ) );
+
+        assertEquals( Arrays.asList( 10L, 30L, 50L ), prefixes );
+    }
+
+    @Test
+    public void verifyTrace() throws Exception
+    {
+        URL source = new URL("https://repo1.maven.org/maven2/commons-io/commons-io/2.6/commons-io-2.6.jar" );
+
+        File target = folder.newFile();
+        File trace = folder.newFile( "trace.json" );
+        File lines = folder.newFile( "trace.jsonl" );
+
+        new JDownloader( source ).target( target.getAbsolutePath() ).minimumSplit( 1 ).partCount( 4 ).trace( trace ).execute();
+
+        String content = FileUtils.readFileToString( trace, "UTF-8" );
+        assertTrue( content.startsWith( "{\"displayTimeUnit\"" ) );
+        assertTrue( content.contains( "\"name\":\"tls\"" ) );
+        assertTrue( content.contains( "\"name\":\"transfer\",\"ph\":\"B\",\"pid\":1,\"tid\":4" ) );
+
+        new JDownloader( source ).target( target.getAbsolutePath() ).minimumSplit( 1 ).trace( lines ).execute();
+
+        for ( String line : FileUtils.readLines( lines, "UTF-8" ) )
+        {
+            assertTrue( line, line.matches( "\\{\"ts\":\\d+,\"part\":\\d+,\"event\":\"[a-z_]+\",\"value\":\\d+}" ) );
+        }
+    }
+
+    @Test
+    public void verifyTraceRetainsPhases() throws Exception
+    {
+        File lines = folder.newFile( "phases.jsonl" );
+        Tracer tracer = new Tracer( lines, 4 );
+
+        tracer.record( Tracer.Event.REQUEST, 1, 0 );
+        for ( int i = 0; i < 100; i++ )
+        {
+            tracer.record( Tracer.Event.BYTES, 1, i );
+        }
+        tracer.record( Tracer.Event.PART_END, 1, 0 );
+        tracer.write();
+
+        List<String> events = FileUtils.readLines( lines, "UTF-8" );
+        assertEquals( 6, events.size() );
+        assertTrue( events.get( 0 ), events.get( 0 ).contains( "\"event\":\"request\"" ) );
+        assertTrue( events.get( 4 ), events.get( 4 ).contains( "\"event\":\"bytes\",\"value\":99" ) );
+        assertTrue( events.get( 5 ), events.get( 5 ).contains( "\"event\":\"part_end\"" ) );
+    }
+
     @Test(expected = IOException.class )
     public void verifyErrorHandling1() throws Exception
     {
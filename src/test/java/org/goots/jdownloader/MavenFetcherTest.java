@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2019 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.goots.jdownloader;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jetty.server.RequestLog;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.DefaultServlet;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.goots.jdownloader.utils.ByteUtils;
+import org.goots.jdownloader.utils.InternalException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertTrue;
+
+public class MavenFetcherTest
+{
+    private static final String REPOSITORY = "https://repo1.maven.org/maven2";
+
+    private static final String JAR = "commons-io/commons-io/2.6/commons-io-2.6.jar";
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder(  );
+
+    @Test
+    public void verifyResolve() throws Exception
+    {
+        assertEquals( Arrays.asList( "org/foo/bar/1.0/bar-1.0.jar", "org/foo/bar/1.0/bar-1.0.pom" ),
+                      MavenFetcher.resolve( "org.foo:bar:1.0" ) );
+        assertEquals( Arrays.asList( "org/foo/bar/1.0/bar-1.0-sources.jar", "org/foo/bar/1.0/bar-1.0.pom" ),
+                      MavenFetcher.resolve( "org.foo:bar:jar:sources:1.0" ) );
+        assertEquals( Collections.singletonList( "org/foo/bar/1.0/bar-1.0.pom" ),
+                      MavenFetcher.resolve( "org.foo:bar:pom:1.0" ) );
+    }
+
+    @Test
+    public void verifyFetch() throws Exception
+    {
+        File original = folder.newFile();
+        FileUtils.copyURLToFile( new URL( REPOSITORY + '/' + JAR ), original );
+
+        File repository = folder.newFolder();
+
+        new MavenFetcher( REPOSITORY ).localRepository( repository ).fetch( Collections.singletonList( "commons-io:commons-io:2.6" ) );
+
+        File jar = new File( repository, JAR );
+        assertTrue( FileUtils.contentEquals( original, jar ) );
+        assertTrue( new File( repository, JAR + ".sha1" ).exists() );
+        assertTrue( new File( repository, "commons-io/commons-io/2.6/commons-io-2.6.pom" ).exists() );
+
+        // A valid existing file is skipped, a corrupt one is replaced.
+        jar.setLastModified( 0 );
+        new MavenFetcher( REPOSITORY ).localRepository( repository ).fetch( Collections.singletonList( "commons-io:commons-io:2.6" ) );
+        assertEquals( 0, jar.lastModified() );
+
+        FileUtils.writeStringToFile( jar, "corrupt", "UTF-8" );
+        new MavenFetcher( REPOSITORY ).localRepository( repository ).fetch( Collections.singletonList( "commons-io:commons-io:2.6" ) );
+        assertTrue( FileUtils.contentEquals( original, jar ) );
+    }
+
+    @Test
+    public void verifyEmptyChecksum() throws Exception
+    {
+        File remote = folder.newFolder();
+        byte[] content = new byte[10_000];
+        new Random( 0 ).nextBytes( content );
+
+        String path = "org/foo/bar/1.0/bar-1.0.pom";
+        FileUtils.writeByteArrayToFile( new File( remote, path ), content );
+        FileUtils.writeStringToFile( new File( remote, path + ".sha256" ),
+                                     ByteUtils.toHex( MessageDigest.getInstance( "SHA-256" ).digest( content ) ), "UTF-8" );
+        FileUtils.writeStringToFile( new File( remote, path + ".sha1" ), "\n", "UTF-8" );
+
+        Server server = serve( remote, ( request, response ) -> { } );
+
+        try
+        {
+            File repository = folder.newFolder();
+
+            // An empty sidecar is treated as missing rather than as a mismatch.
+            new MavenFetcher( server.getURI().toString() ).localRepository( repository )
+                                                          .fetch( Collections.singletonList( "org.foo:bar:pom:1.0" ) );
+
+            File pom = new File( repository, path );
+            assertTrue( Arrays.equals( content, FileUtils.readFileToByteArray( pom ) ) );
+            assertFalse( new File( repository, path + ".sha1" ).exists() );
+
+            pom.setLastModified( 0 );
+            new MavenFetcher( server.getURI().toString() ).localRepository( repository )
+                                                          .fetch( Collections.singletonList( "org.foo:bar:pom:1.0" ) );
+            assertEquals( 0, pom.lastModified() );
+        }
+        finally
+        {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void verifySharedPom() throws Exception
+    {
+        File remote = folder.newFolder();
+        for ( String path : new String[] { "org/foo/bar/1.0/bar-1.0.jar", "org/foo/bar/1.0/bar-1.0-sources.jar",
+                                           "org/foo/bar/1.0/bar-1.0.pom" } )
+        {
+            FileUtils.writeStringToFile( new File( remote, path ), path, "UTF-8" );
+        }
+
+        AtomicInteger poms = new AtomicInteger();
+        Server server = serve( remote, ( request, response ) -> {
+            if ( request.getRequestURI().endsWith( ".pom" ) )
+            {
+                poms.incrementAndGet();
+            }
+        } );
+
+        try
+        {
+            File repository = folder.newFolder();
+
+            // Both artifacts resolve the same pom, which is only fetched once.
+            new MavenFetcher( server.getURI().toString() ).localRepository( repository )
+                                                          .fetch( Arrays.asList( "org.foo:bar:1.0", "org.foo:bar:jar:sources:1.0" ) );
+
+            assertEquals( 1, poms.get() );
+            assertEquals( "org/foo/bar/1.0/bar-1.0.pom",
+                          FileUtils.readFileToString( new File( repository, "org/foo/bar/1.0/bar-1.0.pom" ), "UTF-8" ) );
+            assertTrue( new File( repository, "org/foo/bar/1.0/bar-1.0-sources.jar" ).exists() );
+        }
+        finally
+        {
+            server.stop();
+        }
+    }
+
+    @Test( expected = InternalException.class )
+    public void verifyMissing() throws Exception
+    {
+        new MavenFetcher( REPOSITORY ).localRepository( folder.newFolder() ).fetch( Collections.singletonList( "dummy-url:dummy-url:1.0" ) );
+    }
+
+    private static Server serve( File remote, RequestLog log ) throws Exception
+    {
+        Server server = new Server( 0 );
+        ServletContextHandler context = new ServletContextHandler();
+        context.setResourceBase( remote.getAbsolutePath() );
+        context.addServlet( DefaultServlet.class, "/" );
+        server.setHandler( context );
+        server.setRequestLog( log );
+        server.start();
+        return server;
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2019 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.goots.jdownloader;
+
+import org.apache.commons.io.FileUtils;
+import org.goots.jdownloader.utils.ByteUtils;
+import org.goots.jdownloader.utils.InternalException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static junit.framework.TestCase.assertTrue;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class MetalinkTest
+{
+    private static final int PIECE = 256 * 1024;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder(  );
+
+    private FaultInjectingServer good;
+
+    private FaultInjectingServer corrupt;
+
+    private byte[] content;
+
+    @Before
+    public void before() throws Exception
+    {
+        content = new byte[3_000_000];
+        new Random( 0 ).nextBytes( content );
+
+        // The preferred mirror serves content with a single flipped byte in each of two pieces.
+        byte[] damaged = content.clone();
+        damaged[PIECE * 2 + 10] ^= 1;
+        damaged[PIECE * 8] ^= 1;
+
+        // Neither mirror accepts HEAD requests, as the metalink makes them unnecessary.
+        good = new FaultInjectingServer( content ).rejectHead( true );
+        corrupt = new FaultInjectingServer( damaged ).rejectHead( true );
+    }
+
+    @After
+    public void after() throws Exception
+    {
+        good.close();
+        corrupt.close();
+    }
+
+    private String document( boolean pieces ) throws Exception
+    {
+        return document( pieces, 2 );
+    }
+
+    private String document( boolean pieces, int goodPriority ) throws Exception
+    {
+        StringBuilder result = new StringBuilder();
+        result.append( "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" )
+              .append( "<metalink xmlns=\"urn:ietf:params:xml:ns:metalink\">\n" )
+              .append( "  <file name=\"content.bin\">\n" )
+              .append( "    <size>" ).append( content.length ).append( "</size>\n" )
+              .append( "    <hash type=\"sha-256\">" ).append( hash( content, 0, content.length ) ).append( "</hash>\n" );
+        if ( pieces )
+        {
+            result.append( "    <pieces length=\"" ).append( PIECE ).append( "\" type=\"sha-1\">\n" );
+            for ( int i = 0; i < content.length; i += PIECE )
+            {
+                result.append( "      <hash>" ).append( hash( content, i, Math.min( PIECE, content.length - i ) ) ).append( "</hash>\n" );
+            }
+            result.append( "    </pieces>\n" );
+        }
+        result.append( "    <url priority=\"" ).append( goodPriority ).append( "\">" ).append( good.getURL() ).append( "</url>\n" )
+              .append( "    <url priority=\"1\">" ).append( corrupt.getURL() ).append( "</url>\n" )
+              .append( "  </file>\n" )
+              .append( "</metalink>\n" );
+        return result.toString();
+    }
+
+    private static String hash( byte[] content, int offset, int length ) throws Exception
+    {
+        MessageDigest digest = MessageDigest.getInstance( length == content.length ? "SHA-256" : "SHA-1" );
+        digest.update( content, offset, length );
+        return ByteUtils.toHex( digest.digest() );
+    }
+
+    private static Metalink parse( String document ) throws Exception
+    {
+        return Metalink.parse( new ByteArrayInputStream( document.getBytes( StandardCharsets.UTF_8 ) ) );
+    }
+
+    @Test
+    public void verifyParse() throws Exception
+    {
+        Metalink metalink = parse( document( true ) );
+
+        assertEquals( "content.bin", metalink.getName() );
+        assertEquals( content.length, metalink.getSize() );
+        assertEquals( Arrays.asList( corrupt.getURL(), good.getURL() ), metalink.getUrls() );
+        assertEquals( 1, metalink.getPreferredCount() );
+        assertEquals( PIECE, metalink.getPieceLength() );
+        assertEquals( 12, metalink.getPieces().size() );
+        assertEquals( hash( content, 0, content.length ), metalink.getHashes().get( "sha-256" ) );
+    }
+
+    @Test
+    public void verifyPieces() throws Exception
+    {
+        File meta4 = folder.newFile( "content.meta4" );
+        FileUtils.writeStringToFile( meta4, document( true ), StandardCharsets.UTF_8 );
+        File target = folder.newFile();
+        File trace = new File( folder.getRoot(), "trace.jsonl" );
+
+        new JDownloader( Metalink.load( meta4.getAbsolutePath() ) ).partCount( 4 ).target( target.getAbsolutePath() )
+                                                                 .trace( trace ).execute();
+
+        assertTrue( Arrays.equals( content, FileUtils.readFileToByteArray( target ) ) );
+        // Every piece comes from the preferred mirror; only the two bad pieces fall back to the other.
+        assertEquals( 12, corrupt.getRequests() );
+        assertEquals( 2, good.getRequests() );
+        // Each refetch is traced with the mirror and cause.
+        assertEquals( 2, FileUtils.readLines( trace, StandardCharsets.UTF_8 ).stream()
+                                  .filter( l -> l.contains( "\"event\":\"retry\"" ) && l.contains( "hash mismatch" ) )
+                                  .count() );
+    }
+
+    @Test
+    public void verifyProgressAfterVerification() throws Exception
+    {
+        File target = folder.newFile();
+        List<Long> prefixes = new ArrayList<>();
+
+        new JDownloader( parse( document( true ) ) ).partCount( 4 ).target( target.getAbsolutePath() )
+                                                    .listener( new DownloadListener()
+                                                    {
+                                                        @Override
+                                                        public void prefixCompleted( long length )
+                                                        {
+                                                            prefixes.add( length );
+                                                        }
+                                                    } ).execute();
+
+        // Progress only ever covers whole pieces, which have passed their hash.
+        for ( long prefix : prefixes )
+        {
+            assertTrue( Long.toString( prefix ), prefix % PIECE == 0 || prefix == content.length );
+        }
+        assertEquals( content.length, (long) prefixes.get( prefixes.size() - 1 ) );
+    }
+
+    @Test
+    public void verifyEqualPriority() throws Exception
+    {
+        File target = folder.newFile();
+
+        new JDownloader( parse( document( true, 1 ) ) ).partCount( 4 ).target( target.getAbsolutePath() ).execute();
+
+        assertTrue( Arrays.equals( content, FileUtils.readFileToByteArray( target ) ) );
+        // Mirrors sharing the top priority split the pieces; the damaged even pieces come from the good mirror.
+        assertEquals( 6, good.getRequests() );
+        assertEquals( 6, corrupt.getRequests() );
+    }
+
+    @Test( expected = InternalException.class )
+    public void verifyWholeFile() throws Exception
+    {
+        File target = folder.newFile();
+
+        // Without piece hashes corruption can only be detected, not repaired.
+        new JDownloader( parse( document( false ) ) ).partCount( 4 ).target( target.getAbsolutePath() ).execute();
+    }
+
+    @Test( expected = InternalException.class )
+    public void verifyInvalid() throws Exception
+    {
+        parse( "<metalink xmlns=\"urn:ietf:params:xml:ns:metalink\"><file name=\"x\"><size>1</size></file></metalink>" );
+    }
+
+    @Test
+    public void verifyInvalidNumbers() throws Exception
+    {
+        String valid = document( true );
+
+        for ( String invalid : new String[] { valid.replace( "length=\"" + PIECE + "\"", "length=\"0\"" ),
+                                              valid.replace( "length=\"" + PIECE + "\"", "length=\"big\"" ),
+                                              valid.replace( "<size>" + content.length, "<size>-1" ),
+                                              valid.replace( "<size>" + content.length, "<size>1MB" ),
+                                              valid.replace( "priority=\"1\"", "priority=\"first\"" ) } )
+        {
+            try
+            {
+                parse( invalid );
+                fail( "Expected invalid metalink to be rejected" );
+            }
+            catch ( InternalException e )
+            {
+                assertTrue( e.getMessage(), e.getMessage().startsWith( "Metalink has an invalid " ) );
+            }
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2019 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.goots.jdownloader;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.goots.jdownloader.utils.InternalException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RemoteZipTest
+{
+    private static final String SOURCE = "https://repo1.maven.org/maven2/commons-io/commons-io/2.6/commons-io-2.6.jar";
+
+    private static final String CLASS = "org/apache/commons/io/FileUtils.class";
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder(  );
+
+    @Test
+    public void verifyList() throws Exception
+    {
+        File original = folder.newFile();
+        FileUtils.copyURLToFile( new URL( SOURCE ), original );
+
+        try ( ZipFile zipFile = new ZipFile( original ); RemoteZip zip = new JDownloader( SOURCE ).zip() )
+        {
+            List<String> expected = Collections.list( zipFile.entries() ).stream().map( ZipEntry::getName ).collect( Collectors.toList() );
+
+            assertEquals( expected, zip.list().stream().map( ZipEntry::getName ).collect( Collectors.toList() ) );
+        }
+    }
+
+    @Test
+    public void verifyExtract() throws Exception
+    {
+        File original = folder.newFile();
+        FileUtils.copyURLToFile( new URL( SOURCE ), original );
+
+        try ( ZipFile zipFile = new ZipFile( original ); RemoteZip zip = new JDownloader( SOURCE ).zip() )
+        {
+            Map<String, byte[]> result = zip.extract( "META-INF/MANIFEST.MF", CLASS );
+
+            assertEquals( 2, result.size() );
+            assertTrue( Arrays.equals( IOUtils.toByteArray( zipFile.getInputStream( zipFile.getEntry( CLASS ) ) ),
+                                       result.get( CLASS ) ) );
+
+            File directory = folder.newFolder();
+            zip.extract( directory, "META-INF/MANIFEST.MF" );
+
+            assertTrue( Arrays.equals( IOUtils.toByteArray( zipFile.getInputStream( zipFile.getEntry( "META-INF/MANIFEST.MF" ) ) ),
+                                       FileUtils.readFileToByteArray( new File( directory, "META-INF/MANIFEST.MF" ) ) ) );
+        }
+    }
+
+    @Test(expected = InternalException.class)
+    public void verifyOversizedCentralDirectory() throws Exception
+    {
+        File archive = archive( "oversized.zip" );
+
+        // Claim a central directory of 4GB in the end of central directory record, which has no comment.
+        try ( RandomAccessFile file = new RandomAccessFile( archive, "rw" ) )
+        {
+            file.seek( file.length() - 22 + 12 );
+            file.write( new byte[] { 0, 0, 0, (byte) 0xF0 } );
+        }
+
+        try ( RemoteZip zip = new JDownloader( archive.toURI().toURL() ).zip() )
+        {
+            zip.list();
+        }
+    }
+
+    @Test
+    public void verifyOverrunningCentralDirectory() throws Exception
+    {
+        File archive = archive( "overrun.zip" );
+        long eocd = archive.length() - 22;
+
+        // An entry count beyond the records present, then a name length beyond the central directory.
+        try ( RandomAccessFile file = new RandomAccessFile( archive, "rw" ) )
+        {
+            file.seek( eocd + 10 );
+            file.write( new byte[] { 2, 0 } );
+        }
+        assertCorrupt( archive );
+
+        try ( RandomAccessFile file = new RandomAccessFile( archive, "rw" ) )
+        {
+            file.seek( eocd + 10 );
+            file.write( new byte[] { 1, 0 } );
+            file.seek( eocd + 16 );
+            long cdOffset = Integer.toUnsignedLong( Integer.reverseBytes( file.readInt() ) );
+            file.seek( cdOffset + 28 );
+            file.write( new byte[] { (byte) 0xFF, (byte) 0xFF } );
+        }
+        assertCorrupt( archive );
+    }
+
+    @Test(expected = InternalException.class)
+    public void verifyMissingEntry() throws Exception
+    {
+        try ( RemoteZip zip = new JDownloader( SOURCE ).zip() )
+        {
+            zip.extract( "does/not/exist" );
+        }
+    }
+
+    /**
+     * Writes an archive of a single small entry, without a comment.
+     */
+    private File archive( String name ) throws Exception
+    {
+        File archive = folder.newFile( name );
+        try ( ZipOutputStream out = new ZipOutputStream( new FileOutputStream( archive ) ) )
+        {
+            out.putNextEntry( new ZipEntry( "a.txt" ) );
+            out.write( "content".getBytes( StandardCharsets.UTF_8 ) );
+            out.closeEntry();
+        }
+        return archive;
+    }
+
+    private static void assertCorrupt( File archive ) throws Exception
+    {
+        try ( RemoteZip zip = new JDownloader( archive.toURI().toURL() ).zip() )
+        {
+            zip.list();
+            fail( "Expected a corrupt central directory" );
+        }
+        catch ( InternalException e )
+        {
+            assertTrue( e.getMessage(), e.getMessage().contains( "corrupt central directory" ) );
+        }
+    }
+}
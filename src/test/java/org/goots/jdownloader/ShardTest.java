@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2019 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.goots.jdownloader;
+
+import org.apache.commons.io.FileUtils;
+import org.goots.jdownloader.utils.ByteUtils;
+import org.goots.jdownloader.utils.InternalException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static junit.framework.TestCase.assertTrue;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ShardTest
+{
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder(  );
+
+    private FaultInjectingServer server;
+
+    private byte[] content;
+
+    private ExecutorService service;
+
+    @Before
+    public void before() throws Exception
+    {
+        content = new byte[5_000_000];
+        new Random( 0 ).nextBytes( content );
+        server = new FaultInjectingServer( content );
+        service = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void after() throws Exception
+    {
+        service.shutdownNow();
+        server.close();
+    }
+
+    @Test
+    public void verifyWorkers() throws Exception
+    {
+        File target = new File( folder.getRoot(), "target.bin" );
+
+        try ( ShardCoordinator coordinator = new ShardCoordinator( server.getURL(), target, 0 ).leaseSize( 250_000 )
+                                                                                           .start() )
+        {
+            List<Future<Long>> workers = new ArrayList<>();
+            for ( int i = 0; i < 3; i++ )
+            {
+                workers.add( service.submit( new ShardWorker( "localhost", coordinator.getPort() ).threads( 2 ) ) );
+            }
+            coordinator.awaitCompletion();
+
+            long total = 0;
+            for ( Future<Long> worker : workers )
+            {
+                total += worker.get();
+            }
+            assertEquals( content.length, total );
+        }
+
+        assertTrue( Arrays.equals( content, FileUtils.readFileToByteArray( target ) ) );
+        assertEquals( 20, server.getRequests() );
+    }
+
+    @Test
+    public void verifyRejectedLength() throws Exception
+    {
+        File target = new File( folder.getRoot(), "target.bin" );
+
+        try ( ShardCoordinator coordinator = new ShardCoordinator( server.getURL(), target, 0 ).leaseSize( 250_000 )
+                                                                                           .start();
+              Socket lying = new Socket( "localhost", coordinator.getPort() ) )
+        {
+            // A worker that claims to have completed a range with only part of its content.
+            BufferedReader reader = new BufferedReader( new InputStreamReader( lying.getInputStream(), StandardCharsets.UTF_8 ) );
+            OutputStream out = lying.getOutputStream();
+            assertTrue( reader.readLine().startsWith( "JOB " ) );
+            out.write( "LEASE\n".getBytes( StandardCharsets.UTF_8 ) );
+            out.flush();
+            assertTrue( reader.readLine().startsWith( "RANGE 0 " ) );
+            MessageDigest partial = ShardCoordinator.newDigest();
+            partial.update( content, 0, 1000 );
+            out.write( ( "COMPLETE 0 1000 " + ByteUtils.toHex( partial.digest() ) + "\n" )
+                                       .getBytes( StandardCharsets.UTF_8 ) );
+            out.flush();
+            assertEquals( "REJECTED", reader.readLine() );
+            out.write( "LEASE\n".getBytes( StandardCharsets.UTF_8 ) );
+            out.flush();
+            assertTrue( reader.readLine().startsWith( "RANGE 0 " ) );
+            lying.close();
+
+            Future<Long> worker = service.submit( new ShardWorker( "localhost", coordinator.getPort() ).threads( 2 ) );
+            coordinator.awaitCompletion();
+            assertEquals( content.length, (long) worker.get() );
+        }
+
+        assertTrue( Arrays.equals( content, FileUtils.readFileToByteArray( target ) ) );
+    }
+
+    @Test
+    public void verifyReassignment() throws Exception
+    {
+        File target = new File( folder.getRoot(), "target.bin" );
+
+        try ( ShardCoordinator coordinator = new ShardCoordinator( server.getURL(), target, 0 ).leaseSize( 250_000 )
+                                                                                           .leaseTimeout( 500 )
+                                                                                           .start();
+              Socket stalled = new Socket( "localhost", coordinator.getPort() ) )
+        {
+            // A worker that takes a lease and then stops responding.
+            BufferedReader reader = new BufferedReader( new InputStreamReader( stalled.getInputStream(), StandardCharsets.UTF_8 ) );
+            OutputStream out = stalled.getOutputStream();
+            assertTrue( reader.readLine().startsWith( "JOB " ) );
+            out.write( "LEASE\n".getBytes( StandardCharsets.UTF_8 ) );
+            out.flush();
+            assertTrue( reader.readLine().startsWith( "RANGE 0 " ) );
+
+            // A worker that fails part way through a range hands it back and carries on.
+            server.reset( 1, 100_000 );
+            Future<Long> failing = service.submit( new ShardWorker( "localhost", coordinator.getPort() ).threads( 1 ) );
+            Future<Long> worker = service.submit( new ShardWorker( "localhost", coordinator.getPort() ).threads( 4 ) );
+            coordinator.awaitCompletion();
+
+            assertEquals( content.length, failing.get() + worker.get() );
+        }
+
+        assertTrue( Arrays.equals( content, FileUtils.readFileToByteArray( target ) ) );
+    }
+
+    @Test
+    public void verifyAbort() throws Exception
+    {
+        File target = new File( folder.getRoot(), "target.bin" );
+        server.reset( Integer.MAX_VALUE, 1000 );
+
+        try ( ShardCoordinator coordinator = new ShardCoordinator( server.getURL(), target, 0 ).leaseSize( 250_000 )
+                                                                                           .start() )
+        {
+            Future<Long> worker = service.submit( new ShardWorker( "localhost", coordinator.getPort() ).threads( 1 ) );
+            try
+            {
+                coordinator.awaitCompletion();
+                fail( "Coordinator should have aborted" );
+            }
+            catch ( InternalException e )
+            {
+                assertTrue( e.getMessage(), e.getMessage().contains( "failed " + ShardCoordinator.FAILURE_LIMIT + " times" ) );
+            }
+            try
+            {
+                worker.get();
+                fail( "Worker should have been aborted" );
+            }
+            catch ( ExecutionException e )
+            {
+                assertTrue( e.getCause() instanceof InternalException );
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2019 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.goots.jdownloader;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.TestCase.assertTrue;
+
+/**
+ * Runs many concurrent downloads against a {@link FaultInjectingServer}. The defaults keep this quick enough for
+ * every build; a longer soak may be run with e.g.
+ * <pre>mvn test -Dtest=SoakTest -Dsoak.downloads=500 -Dsoak.concurrency=32</pre>
+ * The throughput floor (bytes per second across all downloads) may be raised with <code>-Dsoak.floor</code> to
+ * catch regressions on a known machine.
+ */
+public class SoakTest
+{
+    private static final int DOWNLOADS = Integer.getInteger( "soak.downloads", 24 );
+
+    private static final int CONCURRENCY = Integer.getInteger( "soak.concurrency", 8 );
+
+    private static final long FLOOR = Long.getLong( "soak.floor", 2_000_000 );
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder(  );
+
+    private FaultInjectingServer server;
+
+    private byte[] content;
+
+    @Before
+    public void before() throws Exception
+    {
+        content = new byte[1_000_000];
+        new Random( 0 ).nextBytes( content );
+        server = new FaultInjectingServer( content ).latency( 10 ).bandwidth( 4_000_000 );
+    }
+
+    @After
+    public void after() throws Exception
+    {
+        server.close();
+    }
+
+    @Test
+    public void verifyThroughput() throws Exception
+    {
+        long start = System.nanoTime();
+        List<Future<Boolean>> results = soak();
+
+        for ( Future<Boolean> result : results )
+        {
+            assertTrue( result.get() );
+        }
+
+        long elapsed = System.nanoTime() - start;
+        long throughput = (long) DOWNLOADS * content.length * TimeUnit.SECONDS.toNanos( 1 ) / elapsed;
+
+        assertTrue( "Throughput of " + throughput + " bytes/s is below the floor of " + FLOOR, throughput >= FLOOR );
+    }
+
+    @Test
+    public void verifyFaultsAreNeverSilent() throws Exception
+    {
+        server.reset( DOWNLOADS / 2, 50_000 ).shortBody( DOWNLOADS / 2 );
+
+        int failed = 0;
+        for ( Future<Boolean> result : soak() )
+        {
+            try
+            {
+                // Every download that reports success must be byte-exact.
+                assertTrue( result.get() );
+            }
+            catch ( ExecutionException e )
+            {
+                assertTrue( e.getCause() instanceof IOException );
+                failed++;
+            }
+        }
+        assertTrue( failed > 0 );
+    }
+
+    private List<Future<Boolean>> soak() throws Exception
+    {
+        ExecutorService service = Executors.newFixedThreadPool( CONCURRENCY );
+        List<Future<Boolean>> results = new ArrayList<>( DOWNLOADS );
+
+        try
+        {
+            for ( int i = 0; i < DOWNLOADS; i++ )
+            {
+                File target = folder.newFile();
+                results.add( service.submit( () -> {
+                    new JDownloader( server.getURL() ).minimumSplit( 1 ).partCount( 4 ).maxThread( 4 )
+                                                      .target( target.getAbsolutePath() ).execute();
+                    return Arrays.equals( content, FileUtils.readFileToByteArray( target ) );
+                } ) );
+            }
+            service.shutdown();
+            assertTrue( service.awaitTermination( 5, TimeUnit.MINUTES ) );
+        }
+        finally
+        {
+            service.shutdownNow();
+        }
+        return results;
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2019 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.jdownloader.utils;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+public class MemoryBudgetTest
+{
+    private static final long HEAP = 1L << 30;
+
+    @Test
+    public void verifyMaxDirectMemory()
+    {
+        assertEquals( HEAP, MemoryBudget.maxDirectMemory( Collections.singletonList( "-Xmx1g" ), HEAP ) );
+        assertEquals( 512L << 20, MemoryBudget.maxDirectMemory( Collections.singletonList( "-XX:MaxDirectMemorySize=512m" ), HEAP ) );
+        // As with HotSpot the last occurrence wins, and 0 requests the default.
+        assertEquals( 2L << 30, MemoryBudget.maxDirectMemory(
+                        Arrays.asList( "-XX:MaxDirectMemorySize=512m", "-XX:MaxDirectMemorySize=2G" ), HEAP ) );
+        assertEquals( HEAP, MemoryBudget.maxDirectMemory( Collections.singletonList( "-XX:MaxDirectMemorySize=0" ), HEAP ) );
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2019 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.jdownloader.training;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Drives the command line against a loopback server so that a class data sharing archive may be recorded with
+ * {@code -XX:ArchiveClassesAtExit}. It also serves the same content for the startup benchmark. It is not part of the
+ * shipped artifact; the fast-startup profile runs it as a single source file program. Usage:
+ * <pre>
+ * StartupTrainer.java --record Archive Jar    serve, record Archive from a multi-part download run from Jar, then exit
+ * StartupTrainer.java --serve Port            serve until killed
+ * </pre>
+ * The download is run in a separate JVM using only the jar as its class path, as the archive may only be used with a
+ * class path that matches the one it was recorded with. The server provides /small (1KB) and /large (4MB) with support
+ * for HEAD and single range requests.
+ */
+public class StartupTrainer
+{
+    private static final Pattern RANGE = Pattern.compile( "bytes=(\\d+)-(\\d*)" );
+
+    private static final int SMALL = 1024;
+
+    private static final int LARGE = 4 * 1024 * 1024;
+
+    public static void main( String[] args ) throws Exception
+    {
+        if ( args.length == 2 && "--serve".equals( args[0] ) )
+        {
+            serve( Integer.parseInt( args[1] ) );
+            return;
+        }
+        if ( args.length != 3 || !"--record".equals( args[0] ) )
+        {
+            System.err.println( "Usage: StartupTrainer.java --record Archive Jar | --serve Port" );
+            System.exit( 2 );
+        }
+
+        HttpServer server = serve( 0 );
+        File target = File.createTempFile( "jdownloader-training", ".bin" );
+        String base = "http://127.0.0.1:" + server.getAddress().getPort();
+        String java = System.getProperty( "java.home" ) + File.separator + "bin" + File.separator + "java";
+        int status;
+
+        try
+        {
+            Process process = new ProcessBuilder( java, "-XX:ArchiveClassesAtExit=" + args[1], "-cp", args[2],
+                                                  "org.goots.jdownloader.Main", "--url=" + base + "/large",
+                                                  "--out=" + target.getAbsolutePath(), "-s=1" ).inheritIO().start();
+            status = process.waitFor();
+        }
+        finally
+        {
+            server.stop( 0 );
+            ( (ExecutorService) server.getExecutor() ).shutdownNow();
+            //noinspection ResultOfMethodCallIgnored
+            target.delete();
+        }
+        if ( status != 0 )
+        {
+            System.err.println( "Training run failed with exit status " + status );
+            System.exit( status );
+        }
+    }
+
+    private static HttpServer serve( int port ) throws IOException
+    {
+        HttpServer server = HttpServer.create( new InetSocketAddress( InetAddress.getLoopbackAddress(), port ), 0 );
+        server.setExecutor( Executors.newCachedThreadPool() );
+        server.createContext( "/small", e -> handle( e, SMALL ) );
+        server.createContext( "/large", e -> handle( e, LARGE ) );
+        server.start();
+        return server;
+    }
+
+    private static void handle( HttpExchange exchange, int size ) throws IOException
+    {
+        long from = 0;
+        long to = size - 1;
+        int status = 200;
+        String range = exchange.getRequestHeaders().getFirst( "Range" );
+
+        if ( range != null )
+        {
+            Matcher matcher = RANGE.matcher( range );
+            if ( matcher.matches() )
+            {
+                from = Long.parseLong( matcher.group( 1 ) );
+                if ( !matcher.group( 2 ).isEmpty() )
+                {
+                    to = Math.min( to, Long.parseLong( matcher.group( 2 ) ) );
+                }
+                status = 206;
+                exchange.getResponseHeaders().set( "Content-Range", "bytes " + from + '-' + to + '/' + size );
+            }
+        }
+
+        long length = to - from + 1;
+        exchange.getResponseHeaders().set( "Accept-Ranges", "bytes" );
+
+        if ( "HEAD".equals( exchange.getRequestMethod() ) )
+        {
+            exchange.getResponseHeaders().set( "Content-Length", Long.toString( length ) );
+            exchange.sendResponseHeaders( status, -1 );
+            exchange.close();
+            return;
+        }
+
+        exchange.sendResponseHeaders( status, length );
+        try ( OutputStream out = exchange.getResponseBody() )
+        {
+            byte[] buffer = new byte[8192];
+            for ( long position = from; position <= to; )
+            {
+                int count = (int) Math.min( buffer.length, to - position + 1 );
+                for ( int i = 0; i < count; i++ )
+                {
+                    buffer[i] = (byte) ( position + i );
+                }
+                out.write( buffer, 0, count );
+                position += count;
+            }
+        }
+    }
+}